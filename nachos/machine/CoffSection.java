@@ -149,6 +149,19 @@ public class CoffSection {
 	return initialized;
     }
 
+    /**
+     * Test whether a page of this section holds no initialized data, so that
+     * loading it only zero-fills it.
+     *
+     * @param	spn	the page number within this segment.
+     * @return	<tt>true</tt> if the page starts out zero-filled.
+     */
+    public boolean isZeroFilled(int spn) {
+	Lib.assertTrue(spn>=0 && spn<numPages);
+
+	return !initialized || spn*Processor.pageSize >= size;
+    }
+
     /**
      * Return the length of this section in pages.
      *
@@ -192,7 +205,7 @@ public class CoffSection {
 	     *  Bug identified by Steven Schlansker 3/20/08
 	     *  Bug fix by Michael Rauser
 	     */
-	    initlen = (size==pageSize) ? pageSize : (size%pageSize);
+	    initlen = size - spn*pageSize;
 	else
 	    initlen = pageSize;
 
@@ -202,6 +215,40 @@ public class CoffSection {
 	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
     }
 
+    /**
+     * Load consecutive pages from this segment into physical memory, reading
+     * them from the executable with a single read.
+     *
+     * @param	spn	the first page number within this segment.
+     * @param	ppns	the physical pages to load into, one per page.
+     */
+    public void loadPages(int spn, int[] ppns) {
+	Lib.assertTrue(file != null);
+
+	Lib.assertTrue(spn>=0 && spn+ppns.length<=numPages);
+
+	int pageSize = Processor.pageSize;
+	byte[] memory = Machine.processor().getMemory();
+	byte[] buf = new byte[ppns.length*pageSize];
+	int faddr = contentOffset + spn*pageSize;
+	int initlen;
+
+	if (!initialized)
+	    initlen = 0;
+	else
+	    initlen = Math.max(0, Math.min(buf.length, size - spn*pageSize));
+
+	if (initlen > 0)
+	    Lib.strictReadFile(file, faddr, buf, 0, initlen);
+
+	for (int i=0; i<ppns.length; i++) {
+	    Lib.assertTrue(ppns[i]>=0 &&
+			   ppns[i]<Machine.processor().getNumPhysPages());
+	    System.arraycopy(buf, i*pageSize, memory, ppns[i]*pageSize,
+			     pageSize);
+	}
+    }
+
     /** The COFF object to which this section belongs. */
     protected Coff coff;
     /** The COFF name of this section. */
@@ -32,4 +32,16 @@ public interface FileSystem {
      * @return	<tt>true</tt> if the file was successfully removed.
      */
     public boolean remove(String name);
+
+    /**
+     * Return the time at which the named file was last modified through this
+     * file system, measured in simulated ticks. Files that have not been
+     * created, written or removed since Nachos started report <tt>0</tt>.
+     * Kernel caches keyed by file contents use this value to notice that a
+     * cached copy has gone stale.
+     *
+     * @param	name	the name of the file.
+     * @return	the simulated modification time of the file.
+     */
+    public long lastModified(String name);
 }
@@ -215,9 +215,40 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	// a large page must be a power of two pages, aligned to its size
+	int numPages = entry.numPages;
+	Lib.assertTrue(!entry.valid ||
+		       (numPages > 0 && (numPages & (numPages-1)) == 0 &&
+			entry.vpn % numPages == 0 && entry.ppn % numPages == 0));
+
 	translations[number] = new TranslationEntry(entry);
     }
 
+    /**
+     * Return the current address space ID, set by the last call to
+     * <tt>setASID()</tt>.
+     *
+     * @return	the current address space ID.
+     */
+    public int getASID() {
+	Lib.assertTrue(usingTLB);
+
+	return asid;
+    }
+
+    /**
+     * Set the current address space ID. From now on, only TLB entries whose
+     * <tt>asid</tt> matches it are used to translate addresses, so entries
+     * of several address spaces can be in the TLB at once.
+     *
+     * @param	asid	the address space ID to use.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+
+	this.asid = asid;
+    }
+
     /**
      * Return the number of pages of physical memory attached to this simulated
      * processor.
@@ -322,10 +353,11 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through all TLB entries for matching vpn and address space
 	else {
 	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+		if (translations[i].valid && translations[i].asid == asid &&
+		    (vpn & ~(translations[i].numPages-1)) == translations[i].vpn) {
 		    entry = translations[i];
 		    break;
 		}
@@ -335,6 +367,7 @@ public final class Processor {
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
+	    privilege.stats.numTLBHits++;
 	}
 
 	// check if trying to write a read-only page
@@ -343,8 +376,11 @@ public final class Processor {
 	    throw new MipsException(exceptionReadOnly, vaddr);
 	}
 
-	// check if physical page number is out of range
+	// check if physical page number is out of range; a large page maps
+	// consecutive physical pages
 	int ppn = entry.ppn;
+	if (usingTLB)
+	    ppn += vpn - entry.vpn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
 	    throw new MipsException(exceptionBusError, vaddr);
@@ -541,6 +577,8 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** The address space ID that TLB entries must match to be used. */
+    private int asid = 0;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
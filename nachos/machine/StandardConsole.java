@@ -5,9 +5,18 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedList;
 
 /**
  * A text-based console that uses System.in and System.out.
+ *
+ * <p>
+ * Standard input is read by a Java thread of its own, outside the simulation,
+ * which blocks until input arrives and queues it. The receive interrupt only
+ * checks that queue, and checks it less and less often while no input comes.
  */
 public class StandardConsole implements SerialConsole {
     /**
@@ -28,6 +37,10 @@ public class StandardConsole implements SerialConsole {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { startReader(); }
+	    });
 	
 	scheduleReceiveInterrupt();
     }
@@ -39,8 +52,38 @@ public class StandardConsole implements SerialConsole {
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
-				     receiveInterrupt);
+	privilege.interrupt.schedule(Stats.ConsoleTime * receiveBackoff,
+				     "console read", receiveInterrupt);
+    }
+
+    private void startReader() {
+	Thread reader = new Thread(new Runnable() {
+		public void run() { readInput(); }
+	    }, "console reader");
+	reader.setDaemon(true);
+	reader.start();
+    }
+
+    /**
+     * Copy standard input into the input queue until it ends. Runs on the
+     * reader thread, so blocking here does not hold up the simulation.
+     */
+    private void readInput() {
+	ReadableByteChannel channel = Channels.newChannel(System.in);
+	ByteBuffer buffer = ByteBuffer.allocate(256);
+
+	try {
+	    while (channel.read(buffer) != -1) {
+		buffer.flip();
+		synchronized (input) {
+		    while (buffer.hasRemaining())
+			input.add(buffer.get() & 0xFF);
+		}
+		buffer.clear();
+	    }
+	}
+	catch (IOException e) {
+	}
     }
 
     /**
@@ -49,14 +92,9 @@ public class StandardConsole implements SerialConsole {
      * @return	the byte read, or -1 of no data is available.
      */
     protected int in() {
-	try {
-	    if (System.in.available() <= 0)
-		return -1;
-
-	    return System.in.read();
-	}
-	catch (IOException e) {
-	    return -1;
+	synchronized (input) {
+	    Integer value = input.poll();
+	    return (value == null) ? -1 : value;
 	}
     }
 
@@ -89,11 +127,16 @@ public class StandardConsole implements SerialConsole {
     private void receiveInterrupt() {
 	Lib.assertTrue(incomingKey == -1);
 
-	incomingKey = translateCharacter(in());
+	int c = in();
+	incomingKey = translateCharacter(c);
 	if (incomingKey == -1) {
+	    // poll less often while there is no input, up to a limit
+	    if (c == -1)
+		receiveBackoff = Math.min(receiveBackoff*2, maxReceiveBackoff);
 	    scheduleReceiveInterrupt();
 	}
 	else {
+	    receiveBackoff = 1;
 	    privilege.stats.numConsoleReads++;
 
 	    if (receiveInterruptHandler != null)
@@ -154,6 +197,12 @@ public class StandardConsole implements SerialConsole {
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
 
+    /** Bytes read from standard input but not yet received. */
+    private LinkedList<Integer> input = new LinkedList<Integer>();
+    /** How many console times to wait before checking for input again. */
+    private int receiveBackoff = 1;
+    private static final int maxReceiveBackoff = 16;
+
     private int incomingKey = -1;
     private int outgoingKey = -1;
 
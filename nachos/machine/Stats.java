@@ -25,12 +25,36 @@ public final class Stats {
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
-	System.out.println("Paging: page faults " + numPageFaults
-			   + ", TLB misses " + numTLBMisses);
+	if (numTLBHits + numTLBMisses == 0) {
+	    System.out.println("Paging: page faults " + numPageFaults
+			       + ", TLB misses " + numTLBMisses);
+	}
+	else {
+	    // the processor only raises page faults without a TLB, so leave
+	    // out a count that would always read 0
+	    System.out.println("Paging: TLB misses " + numTLBMisses);
+	    System.out.println("TLB: hit rate "
+			       + percent(numTLBHits, numTLBHits + numTLBMisses)
+			       + "%, misses per 1000 instructions "
+			       + perThousand(numTLBMisses, userTicks));
+	}
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
 
+    private static String percent(long part, long whole) {
+	return perThousand(part, whole*10);
+    }
+
+    private static String perThousand(long part, long whole) {
+	if (whole == 0)
+	    return "0.0";
+
+	// one decimal place, rounded
+	long tenths = (part*10000 + whole/2) / whole;
+	return (tenths/10) + "." + (tenths%10);
+    }
+
     /**
      * The total amount of simulated time that has passed since Nachos
      * started.
@@ -57,6 +81,8 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of translations the TLB has made without a miss. */
+    public long numTLBHits = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
@@ -8,6 +8,7 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.util.HashMap;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -24,6 +25,8 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
 	this.privilege = privilege;
 	this.directory = directory;
+
+	maxOpenFiles = Config.getInteger("StubFileSystem.maxOpenFiles", 16);
     }
     
     public OpenFile open(String name, boolean truncate) {
@@ -33,7 +36,10 @@ public class StubFileSystem implements FileSystem {
 	delay();
 	    
 	try {
-	    return new StubOpenFile(name, truncate);
+	    OpenFile file = new StubOpenFile(name, truncate);
+	    if (truncate)
+		touch(name);
+	    return file;
 	}
 	catch (IOException e) {
 	    return null;
@@ -48,9 +54,20 @@ public class StubFileSystem implements FileSystem {
 
 	FileRemover fr = new FileRemover(new File(directory, name));
 	privilege.doPrivileged(fr);
+	if (fr.successful)
+	    touch(name);
 	return fr.successful;
     }
 
+    public long lastModified(String name) {
+	Long time = modificationTimes.get(name);
+	return (time == null) ? 0 : time.longValue();
+    }
+
+    private void touch(String name) {
+	modificationTimes.put(name, new Long(Machine.timer().getTime()));
+    }
+
     private class FileRemover implements Runnable {
 	public FileRemover(File f) {
 	    this.f = f;
@@ -130,6 +147,7 @@ public class StubFileSystem implements FileSystem {
 		
 		file.seek(pos);
 		file.write(buf, offset, length);
+		touch(getName());
 		return length;
 	    }
 	    catch (IOException e) {
@@ -164,7 +182,10 @@ public class StubFileSystem implements FileSystem {
     }
 
     private int openCount = 0;
-    private static final int maxOpenFiles = 16;
+    /** The most files that may be open at once, across all processes. */
+    private int maxOpenFiles;
+
+    private HashMap<String, Long> modificationTimes = new HashMap<String, Long>();
     
     private Privilege privilege;
     private File directory;
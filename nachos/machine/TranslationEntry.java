@@ -48,6 +48,8 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
+	numPages = entry.numPages;
     }
 
     /** The virtual page number. */
@@ -78,4 +80,21 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The address space this entry belongs to. A TLB entry only translates
+     * addresses while the processor's address space ID matches it. Ignored
+     * in page tables.
+     */
+    public int asid = 0;
+
+    /**
+     * The number of pages a TLB entry translates: a power of two, with
+     * <tt>vpn</tt> and <tt>ppn</tt> both multiples of it. Virtual page
+     * <tt>vpn+i</tt> is translated to physical page <tt>ppn+i</tt>, and the
+     * used and dirty bits cover all of the pages. The processor only reads it
+     * from TLB entries; a kernel may use it in its page tables to record
+     * which pages belong to a large page.
+     */
+    public int numPages = 1;
 }
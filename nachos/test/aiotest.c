@@ -0,0 +1,72 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Tests asynchronous I/O: writes "abcdefgh\n" to a file with two
+ * aio_write()s, reads it back with four aio_read()s issued out of order,
+ * and checks the data and the results posted to the ring. Prints "aio ok"
+ * on success.
+ */
+
+#define NUMEVENTS 8
+
+struct aio_event events[NUMEVENTS];
+struct aio_ring ring;
+char buf[16];
+
+void fail(char *what)
+{
+  printf("aiotest: %s failed\n", what);
+  exit(1);
+}
+
+int main(int argc, char** argv)
+{
+  int fd, i, sum;
+
+  ring.head = ring.tail = 0;
+  ring.size = NUMEVENTS;
+  ring.events = events;
+
+  fd = creat("aiotest.txt");
+  if (fd == -1)
+    fail("creat");
+
+  if (aio_write(fd, "abcd", 4, 0) == -1 || aio_write(fd, "efgh\n", 5, 4) == -1)
+    fail("aio_write");
+  if (aio_wait(&ring, 2) != 2)
+    fail("aio_wait for the writes");
+
+  /* read the file back in pieces, last piece first */
+  aio_read(fd, buf+6, 3, 6);
+  aio_read(fd, buf+0, 2, 0);
+  aio_read(fd, buf+4, 2, 4);
+  aio_read(fd, buf+2, 2, 2);
+  if (aio_wait(&ring, 6) != 6)
+    fail("aio_wait for the reads");
+
+  buf[9] = '\0';
+  if (strcmp(buf, "abcdefgh\n") != 0)
+    fail("read back");
+
+  /* 4 and 5 bytes written, then 3+2+2+2 bytes read */
+  sum = 0;
+  for (i=0; i<6; i++)
+    sum += events[i].result;
+  if (sum != 18)
+    fail("posted results");
+
+  /* nothing is in flight, so this returns at once */
+  if (aio_wait(&ring, 7) != 6)
+    fail("aio_wait with nothing in flight");
+
+  /* only disk files are accepted */
+  if (aio_read(fdStandardInput, buf, 1, 0) != -1)
+    fail("aio_read of the console");
+
+  close(fd);
+  unlink("aiotest.txt");
+
+  printf("aio ok\n");
+  return 0;
+}
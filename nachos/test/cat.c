@@ -10,22 +10,29 @@ int main(int argc, char** argv)
 {
   int fd, amount;
 
-  if (argc!=2) {
-    printf("Usage: cat <file>\n");
+  if (argc>2) {
+    printf("Usage: cat [file]\n");
     return 1;
   }
 
-  fd = open(argv[1]);
-  if (fd==-1) {
-    printf("Unable to open %s\n", argv[1]);
-    return 1;
+  /* with no file, copy standard input, so cat can end a pipeline */
+  if (argc==1) {
+    fd = 0;
+  }
+  else {
+    fd = open(argv[1]);
+    if (fd==-1) {
+      printf("Unable to open %s\n", argv[1]);
+      return 1;
+    }
   }
 
   while ((amount = read(fd, buf, BUFSIZE))>0) {
     write(1, buf, amount);
   }
 
-  close(fd);
+  if (fd!=0)
+    close(fd);
 
   return 0;
 }
@@ -0,0 +1,29 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Measures exec throughput: runs a program (echo.coff by default) the given
+ * number of times (10000 by default), one after another, and waits for each
+ * run to finish. Compare the tick counts printed when Nachos halts.
+ */
+int main(int argc, char** argv)
+{
+  int i, pid, status, count, failed;
+  char *prog;
+  char *args[1];
+
+  count = (argc > 1) ? atoi(argv[1]) : 10000;
+  prog = (argc > 2) ? argv[2] : "echo.coff";
+  args[0] = prog;
+  failed = 0;
+
+  for (i=0; i<count; i++) {
+    pid = exec(prog, 1, args);
+    if (pid == -1 || join(pid, &status) != 1)
+      failed++;
+  }
+
+  printf("%d runs of %s, %d failed\n", count, prog, failed);
+
+  return 0;
+}
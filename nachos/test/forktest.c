@@ -0,0 +1,35 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Tests fork(): the child changes a variable, which the parent must not
+ * see, and exits with a status the parent collects with join(). Prints
+ * "fork ok" on success.
+ */
+
+int var = 7;
+
+int main(int argc, char** argv)
+{
+  int pid, status;
+
+  pid = fork();
+  if (pid == -1) {
+    printf("forktest: fork failed\n");
+    return 1;
+  }
+
+  if (pid == 0) {
+    /* the write gives the child its own copy of the page */
+    var = 99;
+    exit(var == 99 ? 5 : 1);
+  }
+
+  if (join(pid, &status) != 1 || status != 5 || var != 7) {
+    printf("forktest: copy-on-write failed\n");
+    return 1;
+  }
+
+  printf("fork ok\n");
+  return 0;
+}
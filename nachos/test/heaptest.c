@@ -0,0 +1,48 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Tests a large heap: grows the heap by 32 pages, which the VM kernel can
+ * map with large pages, writes each page's address into it and reads them
+ * all back, then shrinks the heap by 6 pages, which splits a large page,
+ * and grows it again. Run it with -d v to see the large pages mapped and
+ * split. Prints "heap ok" on success.
+ */
+
+#define PAGE		1024
+#define NUMPAGES	32
+
+void fail(char *what)
+{
+  printf("heaptest: %s failed\n", what);
+  exit(1);
+}
+
+int main(int argc, char** argv)
+{
+  char *heap;
+  int i;
+
+  heap = (char *) sbrk(NUMPAGES*PAGE);
+  if (heap == (char *) -1)
+    fail("sbrk");
+
+  for (i=0; i<NUMPAGES; i++)
+    *(char **) (heap + i*PAGE) = heap + i*PAGE;
+  for (i=0; i<NUMPAGES; i++)
+    if (*(char **) (heap + i*PAGE) != heap + i*PAGE)
+      fail("reading the heap");
+
+  /* the pages given back come back zero */
+  sbrk(-6*PAGE);
+  sbrk(6*PAGE);
+  for (i=0; i<NUMPAGES-6; i++)
+    if (*(char **) (heap + i*PAGE) != heap + i*PAGE)
+      fail("reading the heap after shrinking it");
+  for (; i<NUMPAGES; i++)
+    if (*(char **) (heap + i*PAGE) != 0)
+      fail("zero fill");
+
+  printf("heap ok\n");
+  return 0;
+}
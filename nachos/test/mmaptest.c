@@ -0,0 +1,127 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Tests mmap(): maps a three-page file, changes it through the mapping and
+ * checks that the change reaches the file when it is closed. A forked
+ * child gets a copy of the mapping, and must still see it after the parent
+ * has unmapped the file and the child has pushed the copy out of memory.
+ * Last, dirties every page of a file larger than memory, so that the
+ * changes are written back as the pages are replaced. Prints "mmap ok" on
+ * success.
+ */
+
+#define MAP	((char *) 0x40000)
+#define PAGE	1024
+#define SWEEP	16
+
+char block[PAGE];
+char sweep[SWEEP*PAGE];
+volatile int spin;
+
+void fail(char *what)
+{
+  printf("mmaptest: %s failed\n", what);
+  exit(1);
+}
+
+int child()
+{
+  int i, j;
+
+  /* give the parent time to unmap the file */
+  for (i=0; i<20000; i++)
+    spin++;
+
+  /* touch more pages than there is memory, twice */
+  for (j=0; j<2; j++)
+    for (i=0; i<SWEEP; i++)
+      sweep[i*PAGE] = j;
+
+  if (MAP[0] != 'A' || MAP[PAGE+1000] != 'b' || MAP[2*PAGE+1000] != 'c')
+    return 1;
+
+  MAP[5] = 'Z';
+  for (i=0; i<SWEEP; i++)
+    sweep[i*PAGE+4] = i;
+
+  return (MAP[5] == 'Z' && MAP[1000] == 'a') ? 0 : 1;
+}
+
+void bigmap()
+{
+  int fd, i, j;
+
+  memset(sweep, 0, SWEEP*PAGE);
+  fd = creat("mmaptest.txt");
+  if (write(fd, sweep, SWEEP*PAGE) != SWEEP*PAGE)
+    fail("write");
+  close(fd);
+
+  fd = open("mmaptest.txt");
+  if (mmap(fd, MAP) != SWEEP*PAGE)
+    fail("mmap");
+
+  /* twice, so that the first changes are pushed out */
+  for (j=0; j<2; j++)
+    for (i=0; i<SWEEP; i++)
+      MAP[i*PAGE+7] = 'A'+i;
+
+  for (i=0; i<SWEEP; i++) {
+    if (MAP[i*PAGE+7] != 'A'+i)
+      fail("reading back a replaced page");
+  }
+  close(fd);
+
+  fd = open("mmaptest.txt");
+  if (read(fd, sweep, SWEEP*PAGE) != SWEEP*PAGE)
+    fail("read");
+  for (i=0; i<SWEEP; i++) {
+    if (sweep[i*PAGE+7] != 'A'+i || sweep[i*PAGE+8] != 0)
+      fail("writing back a replaced page");
+  }
+  close(fd);
+  unlink("mmaptest.txt");
+}
+
+int main(int argc, char** argv)
+{
+  int fd, i, pid, status;
+
+  fd = creat("mmaptest.txt");
+  for (i=0; i<3; i++) {
+    memset(block, 'a'+i, PAGE);
+    if (write(fd, block, PAGE) != PAGE)
+      fail("write");
+  }
+  close(fd);
+
+  fd = open("mmaptest.txt");
+  if (mmap(fd, MAP) != 3*PAGE)
+    fail("mmap");
+  if (write(fd, block, 1) != -1)
+    fail("write to a mapped file");
+  if (MAP[0] != 'a' || MAP[PAGE] != 'b' || MAP[3*PAGE-1] != 'c')
+    fail("reading the mapping");
+  MAP[0] = 'A';
+
+  pid = fork();
+  if (pid == 0)
+    exit(child());
+
+  /* the child's copy of the mapping is now the only one */
+  close(fd);
+  if (join(pid, &status) != 1 || status != 0)
+    fail("the child's copy of the mapping");
+
+  fd = open("mmaptest.txt");
+  if (read(fd, block, PAGE) != PAGE || block[0] != 'A' || block[1] != 'a')
+    fail("writing back the mapping");
+  close(fd);
+  unlink("mmaptest.txt");
+
+  bigmap();
+
+  printf("mmap ok\n");
+  return 0;
+}
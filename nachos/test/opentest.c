@@ -0,0 +1,38 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Tests how many files a program can have open at once: creates a file,
+ * opens it until open() fails, and prints the number of descriptors it
+ * got. Run it from the shell after other programs to see how many files
+ * the kernel itself still holds open.
+ */
+
+#define MAXFDS	32
+
+int main(int argc, char** argv)
+{
+  int fds[MAXFDS];
+  int fd, n;
+
+  fd = creat("opentest.txt");
+  if (fd == -1) {
+    printf("opentest: creat failed\n");
+    exit(1);
+  }
+  close(fd);
+
+  for (n=0; n<MAXFDS; n++) {
+    fds[n] = open("opentest.txt");
+    if (fds[n] == -1)
+      break;
+  }
+
+  printf("opentest: %d files open\n", n);
+
+  while (n > 0)
+    close(fds[--n]);
+  unlink("opentest.txt");
+
+  return 0;
+}
@@ -0,0 +1,54 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Tests sbrk() and stack growth: grows the heap, checks that new heap
+ * memory reads as zero and can be written, shrinks and regrows it, and
+ * touches stack pages well below the initial stack. Prints "sbrk ok" on
+ * success.
+ */
+
+void fail(char *what)
+{
+  printf("sbrktest: %s failed\n", what);
+  exit(1);
+}
+
+/* Use about 6 pages of stack. */
+int deep()
+{
+  volatile char frame[6000];
+
+  frame[0] = 1;
+  frame[5999] = 2;
+  return frame[0] + frame[5999];
+}
+
+int main(int argc, char** argv)
+{
+  int *heap;
+
+  heap = (int *) sbrk(4096);
+  if (heap == (int *) -1)
+    fail("sbrk");
+  if ((char *) sbrk(0) - (char *) heap != 4096)
+    fail("sbrk(0)");
+
+  if (heap[25] != 0 || heap[1000] != 0)
+    fail("zero fill");
+  heap[1000] = 1234;
+  if (heap[1000] != 1234)
+    fail("heap write");
+
+  /* memory given back and taken again starts out zero */
+  sbrk(-4096);
+  sbrk(4096);
+  if (heap[1000] != 0)
+    fail("shrinking the heap");
+
+  if (deep() != 3)
+    fail("stack growth");
+
+  printf("sbrk ok\n");
+  return 0;
+}
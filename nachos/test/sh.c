@@ -108,10 +108,93 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
     return numTokens;
 }
 
+static int spawn(int argc, char *argv[]) {
+    char prog[BUFFERSIZE];
+
+    strcpy(prog, argv[0]);
+    strcat(prog, ".coff");
+
+    return exec(prog, argc, argv);
+}
+
+static void wait(int pid) {
+    int status;
+
+    switch (join(pid, &status)) {
+    case -1:
+	printf("join: Invalid process ID.\n");
+	break;
+    case 0:
+	printf("\n[%d] Unhandled exception\n", pid);
+	break;
+    case 1:
+	printf("\n[%d] Done (%d)\n", pid, status);
+	break;
+    }
+}
+
+/**
+ * runpipe
+ *
+ * Runs the command argv[0..split-1] with its standard output connected to
+ * the standard input of the command argv[split+1..argc-1]. The shell's own
+ * stdin and stdout are pointed at the pipe only while the commands are
+ * started, and are put back afterwards.
+ */
+static void runpipe(int argc, char *argv[], int split, int background) {
+    int fds[2], saved, left, right;
+
+    if (split == 0 || split == argc-1) {
+	printf("Invalid null command.\n");
+	return;
+    }
+
+    if (pipe(fds) == -1) {
+	printf("pipe failed.\n");
+	return;
+    }
+
+    saved = dup(1);
+    close(1);
+    dup(fds[1]);
+    left = spawn(split, argv);
+    close(1);
+    dup(saved);
+    close(saved);
+    close(fds[1]);
+
+    saved = dup(0);
+    close(0);
+    dup(fds[0]);
+    right = spawn(argc-split-1, argv+split+1);
+    close(0);
+    dup(saved);
+    close(saved);
+    close(fds[0]);
+
+    if (left == -1)
+	printf("%s: exec failed.\n", argv[0]);
+    if (right == -1)
+	printf("%s: exec failed.\n", argv[split+1]);
+
+    if (!background) {
+	if (left != -1)
+	    wait(left);
+	if (right != -1)
+	    wait(right);
+    }
+    else {
+	if (left != -1)
+	    printf("\n[%d]\n", left);
+	if (right != -1)
+	    printf("\n[%d]\n", right);
+    }
+}
+
 void runline(char* line) {
-    int pid, background, status;
+    int pid, background, i;
    
-    char args[BUFFERSIZE], prog[BUFFERSIZE];
+    char args[BUFFERSIZE];
     char *argv[MAXARGS];
 
     int argc = tokenizeCommand(line, MAXARGS, argv, args);
@@ -126,6 +209,13 @@ void runline(char* line) {
 	background = 0;
     }
 
+    for (i=0; i<argc; i++) {
+	if (strcmp(argv[i], "|") == 0) {
+	    runpipe(argc, argv, i, background);
+	    return;
+	}
+    }
+
     if (argc > 0) {
 	if (strcmp(argv[0], "exit")==0) {
 	    if (argc == 1) {
@@ -159,10 +249,7 @@ void runline(char* line) {
 	    }
 	}
 	else {
-	    strcpy(prog, argv[0]);
-	    strcat(prog, ".coff");
-
-	    pid = exec(prog, argc, argv);
+	    pid = spawn(argc, argv);
 	    if (pid == -1) {
 		printf("%s: exec failed.\n", argv[0]);
 		return;
@@ -170,17 +257,7 @@ void runline(char* line) {
 	}
 
 	if (!background) {
-	    switch (join(pid, &status)) {
-	    case -1:
-		printf("join: Invalid process ID.\n");
-		break;
-	    case 0:
-		printf("\n[%d] Unhandled exception\n", pid);
-		break;
-	    case 1:
-		printf("\n[%d] Done (%d)\n", pid, status);
-		break;
-	    }
+	    wait(pid);
 	}
 	else {
 	    printf("\n[%d]\n", pid);
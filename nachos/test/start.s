@@ -67,3 +67,38 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(sbrk, syscallSbrk)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(dup, syscallDup)
+	SYSCALLSTUB(waitany, syscallWaitAny)
+	SYSCALLSTUB(getrusage, syscallGetRusage)
+	SYSCALLSTUB(aio_read, syscallAioRead)
+	SYSCALLSTUB(aio_write, syscallAioWrite)
+	SYSCALLSTUB(aio_wait, syscallAioWait)
+	SYSCALLSTUB(poll, syscallPoll)
+	SYSCALLSTUB(thread_join, syscallThreadJoin)
+	SYSCALLSTUB(thread_exit, syscallThreadExit)
+
+/* -------------------------------------------------------------
+ * thread_create
+ *	Passes the kernel a third argument: the address the new thread
+ *	returns to from its function, which exits the thread with the
+ *	function's return value.
+ * -------------------------------------------------------------
+ */
+
+	.globl	thread_create
+	.ent	thread_create
+thread_create:
+	la	$6,__thread_return
+	addiu	$2,$0,syscallThreadCreate
+	syscall
+	j	$31
+	.end	thread_create
+
+	.ent	__thread_return
+__thread_return:
+	addu	$4,$2,$0
+	jal	thread_exit	 /* thread_exit(return value) */
+	.end	__thread_return
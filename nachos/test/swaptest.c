@@ -0,0 +1,56 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Tests swapping of pages shared after fork(): fills a 12-page array,
+ * forks, and has the child check the array and change every word while the
+ * parent waits, then checks that the parent's copy is unchanged. Run it
+ * with fewer physical pages than the two processes need, so that their
+ * pages are swapped out and back in. Prints "swap ok" on success.
+ */
+
+#define N	3072	/* 12 pages of ints */
+
+int arr[N];
+
+/* Return 0 if every arr[i] is 3*i + k. */
+int check(int k)
+{
+  int i;
+
+  for (i=0; i<N; i++)
+    if (arr[i] != 3*i + k)
+      return 1;
+
+  return 0;
+}
+
+int main(int argc, char** argv)
+{
+  int i, pid, status;
+
+  for (i=0; i<N; i++)
+    arr[i] = 3*i + 1;
+
+  pid = fork();
+  if (pid == 0) {
+    if (check(1) != 0)
+      exit(1);
+    for (i=0; i<N; i++)
+      arr[i]++;
+    exit(check(2));
+  }
+
+  if (pid == -1 || join(pid, &status) != 1 || status != 0) {
+    printf("swaptest: child failed\n");
+    return 1;
+  }
+
+  if (check(1) != 0) {
+    printf("swaptest: parent's copy changed\n");
+    return 1;
+  }
+
+  printf("swap ok\n");
+  return 0;
+}
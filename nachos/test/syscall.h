@@ -25,6 +25,19 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallSbrk		14
+#define syscallPipe		15
+#define syscallDup		16
+#define syscallWaitAny		17
+#define syscallGetRusage	18
+#define syscallAioRead		19
+#define syscallAioWrite		20
+#define syscallAioWait		21
+#define syscallPoll		22
+#define syscallThreadCreate	23
+#define syscallThreadJoin	24
+#define syscallThreadExit	25
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -72,7 +85,8 @@ void exit(int status);
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
  * process ID, and starts with stdin opened as file descriptor 0, and stdout
- * opened as file descriptor 1.
+ * opened as file descriptor 1. These refer to the same files or streams as
+ * file descriptors 0 and 1 of the parent.
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
@@ -109,6 +123,72 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Suspend execution of the current process until any of its child processes
+ * has exited, and collect that child as join() would. Children that exited
+ * earlier are collected first, oldest first.
+ *
+ * status points to an integer where the exit status of the child process will
+ * be stored. If the child exited because of an unhandled exception, the value
+ * stored is not defined.
+ *
+ * Returns the process ID of the child, or -1 if the current process has no
+ * children left to wait for.
+ */
+int waitany(int *status);
+
+/**
+ * Create a new process that is a copy of the current process. The child
+ * starts out with the same memory contents and registers as the parent, and
+ * both processes return from fork(). Memory is shared copy-on-write, so
+ * neither process sees the other's later writes.
+ *
+ * The child can be waited for with join(), like a child created by exec().
+ * The child gets a copy of every file descriptor of the parent. Each copy
+ * shares its file position with the parent's, as after dup(), and the file
+ * stays open until both processes have closed it.
+ *
+ * Returns the child's process ID in the parent, 0 in the child, or -1 if the
+ * child could not be created.
+ */
+int fork();
+
+/* MEMORY MANAGEMENT SYSCALLS: sbrk */
+
+/**
+ * Grow (or, with a negative increment, shrink) the heap of the current process
+ * by increment bytes. The heap starts right after the program's data; its end
+ * is called the program break. New heap memory reads as zero, and is only
+ * given physical memory once it is touched.
+ *
+ * The stack does not need sbrk(): it grows automatically as the program
+ * touches pages below the stack pointer, up to a limit set by the kernel.
+ *
+ * Returns the old program break, which is the start of the newly added memory,
+ * or (void *) -1 if the heap cannot grow that much.
+ */
+void *sbrk(int increment);
+
+/* ACCOUNTING SYSCALLS: getrusage */
+
+/* The resources used by a process, as returned by getrusage(). */
+struct rusage {
+    int userTicks;	/* ticks spent running the program */
+    int kernelTicks;	/* ticks the kernel spent on the program's behalf */
+    int numSyscalls;	/* syscalls made, including this getrusage() */
+    int bytesRead;	/* bytes transferred by read() */
+    int bytesWritten;	/* bytes transferred by write() */
+    int numPageFaults;	/* faults on pages not yet mapped or writable */
+};
+
+/**
+ * Store the resources the current process has used so far in usage. Time
+ * spent waiting, for input or for a child, is not counted.
+ *
+ * Returns 0 on success, or -1 if usage is invalid.
+ */
+int getrusage(struct rusage *usage);
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -136,6 +216,9 @@ int creat(char *name);
  * Note that open() can only be used to open files on disk; open() will never
  * return a file descriptor referring to a stream.
  *
+ * A process can have up to 256 file descriptors open, and the kernel limits
+ * the number of disk files open across all processes.
+ *
  * Returns the new file descriptor, or -1 if an error occurred.
  */
 int open(char *name);
@@ -155,6 +238,10 @@ int open(char *name);
  * in the future. Note that read() never waits for a stream to have more data;
  * it always returns as much as possible immediately.
  *
+ * Console input is line-buffered: reading the console returns only complete
+ * lines, including their newlines, and returns 0 while the line being typed
+ * is unfinished.
+ *
  * On error, -1 is returned, and the new file position is undefined. This can
  * happen if fileDescriptor is invalid, if part of the buffer is read-only or
  * invalid, or if a network stream has been terminated by the remote host and
@@ -214,9 +301,160 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * Create a pipe: a one-way stream held in a kernel buffer. The file descriptor
+ * of its read end is stored in fds[0], and that of its write end in fds[1].
+ *
+ * Unlike other streams, a read() from a pipe waits until at least one byte is
+ * available, and returns 0 only once every write end has been closed. A
+ * write() waits while the buffer is full, and fails once every read end has
+ * been closed.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/**
+ * Return a new file descriptor, the lowest one not in use, referring to the
+ * same open file as fileDescriptor. The two descriptors share the file
+ * position, and the file is only closed once both have been closed.
+ *
+ * Processes created by exec() and fork() start with the stdin and stdout of
+ * their parent, so closing a standard descriptor and dup()ing another file
+ * into its place redirects the standard input or output of later children.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fileDescriptor);
+
+/* ASYNCHRONOUS I/O SYSCALLS: aio_read, aio_write, aio_wait */
+
+/* The result of an asynchronous request. */
+struct aio_event {
+    int id;		/* the value aio_read() or aio_write() returned */
+    int result;		/* what read() or write() would have returned */
+};
+
+/*
+ * A ring of results, in the program's memory. head and tail only ever
+ * increase; the entry for index i is events[i % size]. The program consumes
+ * events[head % size] and advances head; the kernel posts results and advances
+ * tail. Set head and tail to 0 before first use.
+ */
+struct aio_ring {
+    int head;			/* next result the program will consume */
+    int tail;			/* one past the last result posted */
+    int size;			/* number of entries in events */
+    struct aio_event *events;
+};
+
+/**
+ * Start reading up to size bytes from position in the disk file referred to
+ * by fileDescriptor into buffer, and return without waiting for the read to
+ * finish. The file position is not used or changed. buffer must not be used
+ * until the result has been posted.
+ *
+ * Requests are carried out by kernel threads, several at a time, so a program
+ * can keep many requests in flight and compute while they complete. Closing
+ * fileDescriptor while a request is in flight makes the request fail.
+ *
+ * Returns a non-negative ID that the result will be posted under, or -1 if an
+ * error occurred, or the process has too many requests in flight.
+ */
+int aio_read(int fileDescriptor, void *buffer, int size, int position);
+
+/**
+ * Start writing size bytes from buffer to position in the disk file referred
+ * to by fileDescriptor, like aio_read(). The bytes are copied from buffer
+ * before aio_write() returns, so buffer can be reused straight away.
+ *
+ * Returns a non-negative ID that the result will be posted under, or -1 if an
+ * error occurred, or the process has too many requests in flight.
+ */
+int aio_write(int fileDescriptor, void *buffer, int size, int position);
+
+/**
+ * Post results to ring from now on, and wait until it holds at least min
+ * results the program has not consumed. Results are posted as requests
+ * finish, so the program can also check ring->tail without calling
+ * aio_wait(). Results that arrive while the ring is full, or before the first
+ * aio_wait(), are posted by the next aio_wait().
+ *
+ * Returns early if every request has finished. When a process exits, it first
+ * waits for its requests in flight to finish.
+ *
+ * Returns the number of results in ring that have not been consumed, or -1 if
+ * ring is invalid.
+ */
+int aio_wait(struct aio_ring *ring, int min);
+
+/* MULTIPLEXING SYSCALLS: poll */
+
+#define POLLIN		0x01	/* read() would not wait */
+#define POLLOUT		0x04	/* write() would not wait */
+#define POLLERR		0x08	/* write end of a pipe with no readers left */
+#define POLLHUP		0x10	/* read end of a pipe with no writers left */
+#define POLLNVAL	0x20	/* fd is not open */
+
+struct pollfd {
+    int fd;		/* the file descriptor to check */
+    int events;		/* POLLIN and/or POLLOUT */
+    int revents;	/* set by poll() to the events that are ready */
+};
+
+/**
+ * Wait until at least one of the count file descriptors in fds is ready for
+ * the events asked for, or until timeout ticks have passed. A timeout of 0
+ * checks without waiting; a negative timeout waits for ever.
+ *
+ * stdin is ready for reading once a whole line has been typed. A pipe is
+ * ready for reading once it holds data, and for writing while it has room.
+ * Disk files are always ready. POLLERR, POLLHUP and POLLNVAL are reported
+ * even if not asked for.
+ *
+ * Returns the number of entries with revents set, 0 if the timeout expired
+ * first, or -1 if an error occurred.
+ */
+int poll(struct pollfd *fds, int count, int timeout);
+
+/* THREAD SYSCALLS: thread_create, thread_join, thread_exit */
+
+/**
+ * Start a new thread in the current process, running func(arg). The thread
+ * shares the process's memory and file descriptors, and runs on a stack of
+ * its own, below the stack of the first thread. If func returns, the thread
+ * exits with func's return value.
+ *
+ * A process can have 8 threads besides its first running at once, each with
+ * a 4-page stack. The stack of an exited thread is reused.
+ *
+ * Returns the new thread's ID, or -1 if too many threads are running.
+ */
+int thread_create(void (*func)(void *), void *arg);
+
+/**
+ * Wait for the thread with the specified ID, in the current process, to exit,
+ * and store its exit status in *status unless status is 0. The first thread
+ * has ID 0. Each thread can be joined once.
+ *
+ * Returns 0 on success, or -1 if tid is not a thread that can be joined.
+ */
+int thread_join(int tid, int *status);
+
+/**
+ * Exit the current thread. When the last thread of a process exits, the
+ * process exits with status as its exit status.
+ *
+ * exit() ends the whole process at once, whichever thread calls it; the other
+ * threads stop the next time they run.
+ */
+void thread_exit(int status);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
+ * may be as large as 0x7FFFFFFF bytes. The address must be page-aligned and
+ * lie above the stack and arguments, clear of any other mapped file. Pages are
+ * read from the file when they are first touched.
  * 
  * To maintain consistency, further calls to read() and write() on this file
  * descriptor will fail (returning -1) until the file descriptor is closed.
@@ -0,0 +1,76 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Tests thread_create() and thread_join(): starts three threads and
+ * collects their return values, checks that bad joins fail, that an
+ * exited thread's stack is reused, and that when two threads join the
+ * same thread only one of them collects it. Prints "threads ok" on
+ * success.
+ */
+
+int worker(int arg)
+{
+  volatile int spin[16];
+  int i;
+
+  /* run long enough to be preempted, using the stack as we go */
+  for (i=0; i<3000; i++)
+    spin[i%16] = i;
+
+  return arg + 100;
+}
+
+int secondJoin;
+
+int joiner(int tid)
+{
+  secondJoin = thread_join(tid, 0);
+  return 0;
+}
+
+void fail(char *what)
+{
+  printf("threadtest: %s failed\n", what);
+  exit(1);
+}
+
+int main(int argc, char** argv)
+{
+  int i, tids[3], status, sum, first;
+
+  for (i=0; i<3; i++) {
+    tids[i] = thread_create((void (*)(void *)) worker, (void *) (i+1));
+    if (tids[i] == -1)
+      fail("thread_create");
+  }
+
+  if (thread_join(0, &status) != -1 || thread_join(77, &status) != -1)
+    fail("invalid thread_join");
+
+  sum = 0;
+  for (i=0; i<3; i++) {
+    if (thread_join(tids[i], &status) != 0)
+      fail("thread_join");
+    sum += status;
+  }
+  if (sum != 101+102+103)
+    fail("return values");
+
+  /* a fourth thread reuses a stack */
+  tids[0] = thread_create((void (*)(void *)) worker, (void *) 5);
+  if (thread_join(tids[0], &status) != 0 || status != 105)
+    fail("stack reuse");
+
+  /* two joiners on one thread: one collects it, the other gets -1 */
+  secondJoin = 1;
+  tids[0] = thread_create((void (*)(void *)) worker, (void *) 0);
+  tids[1] = thread_create((void (*)(void *)) joiner, (void *) tids[0]);
+  first = thread_join(tids[0], 0);
+  thread_join(tids[1], 0);
+  if (first + secondJoin != -1)
+    fail("double join");
+
+  printf("threads ok\n");
+  return 0;
+}
@@ -0,0 +1,52 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Tests waitany(): starts three children, collects them all with
+ * waitany(), checks that waitany() then fails, and that a pid can be given
+ * out again once it has been collected. Prints "wait ok" on success.
+ */
+
+#define NUMCHILDREN 3
+
+void fail(char *what)
+{
+  printf("waittest: %s failed\n", what);
+  exit(1);
+}
+
+int main(int argc, char** argv)
+{
+  int i, j, pid, status, pids[NUMCHILDREN], found;
+  char *args[1];
+
+  args[0] = "echo.coff";
+
+  for (i=0; i<NUMCHILDREN; i++) {
+    pids[i] = exec("echo.coff", 1, args);
+    if (pids[i] == -1)
+      fail("exec");
+  }
+
+  for (i=0; i<NUMCHILDREN; i++) {
+    pid = waitany(&status);
+    found = 0;
+    for (j=0; j<NUMCHILDREN; j++)
+      if (pids[j] == pid) {
+	pids[j] = -1;
+	found = 1;
+      }
+    if (!found || status != 0)
+      fail("waitany");
+  }
+
+  if (waitany(&status) != -1)
+    fail("waitany with no children");
+
+  pid = exec("echo.coff", 1, args);
+  if (pid == -1 || waitany(&status) != pid)
+    fail("exec after waitany");
+
+  printf("wait ok\n");
+  return 0;
+}
@@ -41,9 +41,25 @@ public class Alarm {
 	    	      Machine.interrupt().restore(intStatus);
     	      }
     	}
+    	runTimeouts();
         KThread.currentThread().yield();
     }
 
+    /**
+     * Run the handlers whose time has come. Called from the timer interrupt
+     * handler, with interrupts disabled.
+     */
+    private void runTimeouts() {
+	long time = Machine.timer().getTime();
+	for (Iterator<Timeout> i = timeouts.iterator(); i.hasNext(); ) {
+	    Timeout timeout = i.next();
+	    if (timeout.wakeTime <= time) {
+		i.remove();
+		timeout.handler.run();
+	    }
+	}
+    }
+
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
      * waking it up in the timer interrupt handler. The thread must be
@@ -67,6 +83,50 @@ public class Alarm {
 	    KThread.currentThread().sleep();
 	    Machine.interrupt().restore(status);
     }
+    /**
+     * Call a handler from the timer interrupt handler, once at least <i>x</i>
+     * ticks have passed, without putting the current thread to sleep. The
+     * handler runs with interrupts disabled, so it must not block; it can
+     * wake a thread with <tt>Semaphore.V()</tt>.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	handler	the handler to call.
+     */
+    public void schedule(long x, Runnable handler) {
+	long wakeTime = Machine.timer().getTime() + x;
+	boolean intStatus = Machine.interrupt().disable();
+	timeouts.add(new Timeout(handler, wakeTime));
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stop a handler passed to <tt>schedule()</tt> from being called, if it
+     * has not been called yet.
+     *
+     * @param	handler	the handler.
+     */
+    public void cancel(Runnable handler) {
+	boolean intStatus = Machine.interrupt().disable();
+	for (Iterator<Timeout> i = timeouts.iterator(); i.hasNext(); ) {
+	    if (i.next().handler == handler)
+		i.remove();
+	}
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /** Handlers waiting to be called by <tt>schedule()</tt>. */
+    private LinkedList<Timeout> timeouts = new LinkedList<Timeout>();
+
+    private static class Timeout {
+	Timeout(Runnable handler, long wakeTime) {
+	    this.handler = handler;
+	    this.wakeTime = wakeTime;
+	}
+
+	Runnable handler;
+	long wakeTime;
+    }
+
     /** to store the waitQueue. **/
     private static LinkedList<waitThread> waitQueue = new LinkedList<waitThread>();
     
@@ -0,0 +1,103 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.LinkedList;
+
+/**
+ * A pool of kernel threads that carry out I/O requests on behalf of user
+ * processes, so that a process can keep working, or keep more requests in
+ * flight, while a slow operation completes. Each finished request is posted
+ * to the <tt>CompletionQueue</tt> it was submitted with.
+ *
+ * <p>
+ * Requests are handed to the workers in the order they were submitted. There
+ * are <tt>AsyncIO.numWorkers</tt> workers, started when the first request is
+ * submitted, so at most that many requests are in progress at once.
+ */
+public class AsyncIO {
+    /**
+     * Allocate a new worker pool. No workers run until a request is
+     * submitted.
+     */
+    public AsyncIO() {
+	numWorkers = Config.getInteger("AsyncIO.numWorkers", 4);
+	Lib.assertTrue(numWorkers > 0);
+    }
+
+    /**
+     * Queue a request to be carried out by a worker. The caller must already
+     * have counted the request as started on its completion queue.
+     *
+     * @param	request	the request.
+     */
+    public void submit(Request request) {
+	lock.acquire();
+
+	if (!started) {
+	    started = true;
+	    for (int i=0; i<numWorkers; i++) {
+		new KThread(new Runnable() {
+			public void run() { work(); }
+		    }).setName("aio worker " + i).fork();
+	    }
+	}
+
+	requests.add(request);
+	requestReady.wake();
+
+	lock.release();
+    }
+
+    private void work() {
+	while (true) {
+	    lock.acquire();
+	    while (requests.isEmpty())
+		requestReady.sleep();
+	    Request request = requests.removeFirst();
+	    lock.release();
+
+	    Lib.debug(dbgAsyncIO, "starting request " + request.id);
+
+	    int result = request.perform();
+	    request.completions.post(request.id, result);
+	}
+    }
+
+    /**
+     * An operation to carry out in a worker thread.
+     */
+    public static abstract class Request {
+	/**
+	 * Allocate a new request.
+	 *
+	 * @param	completions	the queue to post the result to.
+	 * @param	id		the ID to post the result under.
+	 */
+	public Request(CompletionQueue completions, int id) {
+	    this.completions = completions;
+	    this.id = id;
+	}
+
+	/**
+	 * Carry out the request. Called in a worker thread.
+	 *
+	 * @return	the result to post.
+	 */
+	protected abstract int perform();
+
+	private CompletionQueue completions;
+	private int id;
+    }
+
+    private int numWorkers;
+    private boolean started = false;
+
+    private LinkedList<Request> requests = new LinkedList<Request>();
+    private Lock lock = new Lock();
+    private Condition requestReady = new Condition(lock);
+
+    private static final char dbgAsyncIO = 'y';
+}
@@ -0,0 +1,196 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.LinkedList;
+
+/**
+ * The results of a process's asynchronous I/O requests. Results are posted to
+ * a ring in the process's memory, laid out as <tt>struct aio_ring</tt> in
+ * <tt>syscall.h</tt>, so that the program can collect them without a
+ * syscall. The kernel only advances the ring's tail and the program only
+ * advances its head.
+ *
+ * <p>
+ * Results are held in the kernel while the process has not yet told it where
+ * its ring is, or while the ring is full, and are copied to the ring the next
+ * time the process waits.
+ */
+public class CompletionQueue {
+    /**
+     * Allocate a new completion queue for a process.
+     *
+     * @param	process	the process the requests belong to.
+     */
+    public CompletionQueue(UserProcess process) {
+	this.process = process;
+
+	maxOutstanding = Config.getInteger("CompletionQueue.maxOutstanding", 64);
+    }
+
+    /**
+     * Count a new request as in flight, and assign it an ID.
+     *
+     * @return	the request's ID, or -1 if the process already has
+     *		<tt>CompletionQueue.maxOutstanding</tt> requests whose results
+     *		have not reached its ring.
+     */
+    public int start() {
+	lock.acquire();
+
+	int id = -1;
+	if (outstanding + pending.size() < maxOutstanding) {
+	    outstanding++;
+	    id = nextId;
+	    nextId = (nextId + 1) & Integer.MAX_VALUE;
+	}
+
+	lock.release();
+	return id;
+    }
+
+    /**
+     * Post the result of a request that has finished.
+     *
+     * @param	id	the request's ID.
+     * @param	result	the request's result.
+     */
+    public void post(int id, int result) {
+	lock.acquire();
+
+	Lib.assertTrue(outstanding > 0);
+	outstanding--;
+
+	pending.add(new int[] { id, result });
+	flush();
+
+	posted.wakeAll();
+	lock.release();
+    }
+
+    /**
+     * Use the ring at <i>ringAddress</i> from now on, and wait until it holds
+     * at least <i>min</i> results the program has not consumed yet. Returns
+     * early if no request is left in flight that could post another result.
+     *
+     * @param	ringAddress	the address of the process's ring.
+     * @param	min		the number of results to wait for.
+     * @return	the number of results in the ring, or -1 if the ring could not
+     *		be accessed.
+     */
+    public int await(int ringAddress, int min) {
+	lock.acquire();
+
+	this.ringAddress = ringAddress;
+
+	int available;
+	while (true) {
+	    flush();
+
+	    available = numPosted();
+	    if (available < 0 || available >= min || outstanding == 0)
+		break;
+
+	    posted.sleep();
+	}
+
+	lock.release();
+	return available;
+    }
+
+    /**
+     * Wait until every request in flight has finished, so that none will
+     * access the process's memory or files after it exits.
+     */
+    public void drain() {
+	lock.acquire();
+	while (outstanding > 0)
+	    posted.sleep();
+	lock.release();
+    }
+
+    /**
+     * Copy as many held results into the ring as it has room for.
+     */
+    private void flush() {
+	while (!pending.isEmpty()) {
+	    int[] header = readHeader();
+	    if (header == null)
+		return;
+
+	    int head = header[0], tail = header[1], size = header[2];
+	    if (tail - head >= size)
+		return;
+
+	    int[] result = pending.getFirst();
+
+	    byte[] event = new byte[eventSize];
+	    Lib.bytesFromInt(event, 0, result[0]);
+	    Lib.bytesFromInt(event, 4, result[1]);
+
+	    // the event must be in place before the program can see the new tail
+	    int eventAddress = header[3] + (tail % size)*eventSize;
+	    if (process.writeVirtualMemory(eventAddress, event) != eventSize)
+		return;
+
+	    byte[] newTail = Lib.bytesFromInt(tail + 1);
+	    if (process.writeVirtualMemory(ringAddress + 4, newTail) != 4)
+		return;
+
+	    pending.removeFirst();
+	}
+    }
+
+    /**
+     * Return the number of results in the ring that the program has not
+     * consumed yet, or -1 if the ring could not be accessed.
+     */
+    private int numPosted() {
+	int[] header = readHeader();
+	if (header == null)
+	    return -1;
+
+	return header[1] - header[0];
+    }
+
+    /**
+     * Read the ring's head, tail, size and events pointer, or return
+     * <tt>null</tt> if there is no ring or it is not valid.
+     */
+    private int[] readHeader() {
+	if (ringAddress == noRing)
+	    return null;
+
+	byte[] bytes = new byte[headerSize];
+	if (process.readVirtualMemory(ringAddress, bytes) != headerSize)
+	    return null;
+
+	int[] header = new int[4];
+	for (int i=0; i<header.length; i++)
+	    header[i] = Lib.bytesToInt(bytes, i*4);
+
+	int head = header[0], tail = header[1], size = header[2];
+	if (size <= 0 || tail - head < 0 || tail - head > size)
+	    return null;
+
+	return header;
+    }
+
+    private UserProcess process;
+    private int ringAddress = noRing;
+
+    private int nextId = 0;
+    private int maxOutstanding;
+    /** The number of requests submitted that have not finished. */
+    private int outstanding = 0;
+    /** Finished requests' IDs and results, not yet copied to the ring. */
+    private LinkedList<int[]> pending = new LinkedList<int[]>();
+
+    private Lock lock = new Lock();
+    private Condition posted = new Condition(lock);
+
+    private static final int noRing = -1;
+    private static final int headerSize = 16, eventSize = 8;
+}
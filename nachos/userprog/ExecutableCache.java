@@ -0,0 +1,419 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.userprog.UserKernel.NotEnoughPagesException;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of executable images. Each image holds the parsed
+ * <tt>Coff</tt> of an executable, so running a program again skips opening
+ * the file and reading its headers. The read-only sections of an executable
+ * never change, so they are also loaded into physical memory once and every
+ * process running the same executable maps them onto the same frames.
+ *
+ * <p>
+ * Images are keyed by file name and modification time, so an executable that
+ * is rewritten or removed gets a fresh image the next time it is run. An image
+ * stays cached after its last user exits; unused images are released, least
+ * recently used first, when there are too many of them or physical memory
+ * runs short.
+ *
+ * <p>
+ * An unused image closes its executable file, so cached images do not count
+ * against the file system's limit on open files. The file is opened again,
+ * without reading the headers, when the image gets a user. The cache lock is
+ * not held while the file is opened, so other executions need not wait for
+ * the file system.
+ */
+public class ExecutableCache {
+    /**
+     * Allocate a new, empty executable cache. At most
+     * <tt>ExecutableCache.maxImages</tt> unused images are kept.
+     */
+    public ExecutableCache() {
+	maxImages = Config.getInteger("ExecutableCache.maxImages", 4);
+    }
+
+    /**
+     * Return the image for the named executable, loading its headers if no
+     * up-to-date image is cached. The caller becomes a user of the image and
+     * must eventually call <tt>release()</tt>.
+     *
+     * @param	name	the name of the executable file.
+     * @return	the image for the executable, or <tt>null</tt> if the file
+     *		could not be opened or is not a valid executable.
+     */
+    public Image acquire(String name) {
+	long modified = ThreadedKernel.fileSystem.lastModified(name);
+
+	cacheLock.acquire();
+
+	Image image = images.get(name);
+	if (image != null && image.modified != modified) {
+	    Lib.debug(dbgCache, "\tstale image for " + name);
+	    discard(image);
+	    image = null;
+	}
+
+	if (image != null) {
+	    numHits++;
+	    image.users++;
+	    cacheLock.release();
+	    return reopen(image);
+	}
+
+	numMisses++;
+
+	cacheLock.release();
+
+	// parse the headers without holding the cache lock
+	ExecutableFile file = open(name);
+	if (file == null)
+	    return null;
+
+	Coff coff;
+	try {
+	    coff = new Coff(file);
+	}
+	catch (EOFException e) {
+	    file.close();
+	    Lib.debug(dbgCache, "\tcoff load failed");
+	    return null;
+	}
+
+	cacheLock.acquire();
+
+	image = images.get(name);
+	if (image != null && image.modified == modified) {
+	    // someone else loaded it while we were reading
+	    coff.close();
+	}
+	else {
+	    if (image != null)
+		discard(image);
+	    image = new Image(name, modified, coff, file);
+	    images.put(name, image);
+	}
+
+	image.users++;
+	trim();
+
+	cacheLock.release();
+	return reopen(image);
+    }
+
+    /**
+     * Open the executable file of an image the caller has just become a user
+     * of, if the image was unused and closed it. Called without the cache
+     * lock; the image cannot close the file again while it has a user.
+     *
+     * @param	image	the image.
+     * @return	the image, or <tt>null</tt> if the file could not be opened,
+     *		in which case the caller is no longer a user of the image.
+     */
+    private Image reopen(Image image) {
+	if (image.file.reopen())
+	    return image;
+
+	release(image);
+	return null;
+    }
+
+    private ExecutableFile open(String name) {
+	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+	if (executable == null) {
+	    Lib.debug(dbgCache, "\topen failed");
+	    return null;
+	}
+
+	return new ExecutableFile(executable);
+    }
+
+    /**
+     * Add another user to an image that is already in use, such as a forked
+     * copy of a process running it.
+     *
+     * @param	image	an image acquired with <tt>acquire()</tt>.
+     */
+    public void retain(Image image) {
+	cacheLock.acquire();
+
+	Lib.assertTrue(image.users > 0);
+	image.users++;
+
+	cacheLock.release();
+    }
+
+    /**
+     * Return the physical pages holding the specified read-only section,
+     * loading the section on first use. Each returned page carries an extra
+     * reference for the caller, dropped when the caller's page table is
+     * freed.
+     *
+     * @param	image	an image acquired with <tt>acquire()</tt>.
+     * @param	s	the section number.
+     * @return	the physical page numbers of the section, or <tt>null</tt> if
+     *		there is not enough physical memory to load it.
+     */
+    public int[] getSectionPages(Image image, int s) {
+	CoffSection section = image.coff.getSection(s);
+	Lib.assertTrue(section.isReadOnly());
+
+	cacheLock.acquire();
+
+	if (image.sectionPages[s] == null) {
+	    TranslationEntry[] frames = allocate(section.getLength());
+	    if (frames == null) {
+		cacheLock.release();
+		return null;
+	    }
+
+	    Lib.debug(dbgCache, "\tcaching " + section.getName() + " section of "
+		      + image.name + " (" + section.getLength() + " pages)");
+
+	    int[] pages = new int[frames.length];
+	    for (int i=0; i<frames.length; i++) {
+		pages[i] = frames[i].ppn;
+		section.loadPage(i, pages[i]);
+	    }
+	    image.sectionFrames[s] = frames;
+	    image.sectionPages[s] = pages;
+	}
+
+	int[] pages = image.sectionPages[s];
+	for (int i=0; i<pages.length; i++)
+	    UserKernel.sharePage(pages[i]);
+
+	cacheLock.release();
+	return pages;
+    }
+
+    /**
+     * Stop using an image. The image remains cached unless it has become
+     * stale, in which case it is freed once it has no users left.
+     *
+     * @param	image	an image acquired with <tt>acquire()</tt>.
+     */
+    public void release(Image image) {
+	cacheLock.acquire();
+
+	Lib.assertTrue(image.users > 0);
+	if (--image.users == 0) {
+	    if (image.stale) {
+		image.free();
+	    }
+	    else {
+		image.file.suspend();
+		trim();
+	    }
+	}
+
+	cacheLock.release();
+    }
+
+    /**
+     * Free every cached image that no process is using.
+     *
+     * @return	the number of images freed.
+     */
+    public int evictUnused() {
+	cacheLock.acquire();
+	int freed = evictUnusedLocked(0);
+	cacheLock.release();
+
+	return freed;
+    }
+
+    /**
+     * Free unused images, least recently used first, until at most
+     * <i>keep</i> of them remain.
+     */
+    private int evictUnusedLocked(int keep) {
+	int unused = 0;
+	for (Image image : images.values()) {
+	    if (image.users == 0)
+		unused++;
+	}
+
+	int freed = 0;
+	for (Iterator<Image> i=images.values().iterator();
+	     i.hasNext() && unused > keep; ) {
+	    Image image = i.next();
+	    if (image.users == 0) {
+		Lib.debug(dbgCache, "\tevicting image of " + image.name);
+		image.free();
+		i.remove();
+		unused--;
+		freed++;
+	    }
+	}
+
+	return freed;
+    }
+
+    private void trim() {
+	evictUnusedLocked(maxImages);
+    }
+
+    /**
+     * Remove an out-of-date image from the cache. Processes still running it
+     * keep using it until they release it.
+     */
+    private void discard(Image image) {
+	images.remove(image.name);
+	image.stale = true;
+	if (image.users == 0)
+	    image.free();
+    }
+
+    private TranslationEntry[] allocate(int numPages) {
+	try {
+	    return UserKernel.getPages(numPages);
+	}
+	catch (NotEnoughPagesException e) {
+	}
+
+	if (evictUnusedLocked(0) == 0)
+	    return null;
+
+	try {
+	    return UserKernel.getPages(numPages);
+	}
+	catch (NotEnoughPagesException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * The parsed headers and shared pages of a single executable.
+     */
+    public static class Image {
+	Image(String name, long modified, Coff coff, ExecutableFile file) {
+	    this.name = name;
+	    this.modified = modified;
+	    this.coff = coff;
+	    this.file = file;
+	    sectionFrames = new TranslationEntry[coff.getNumSections()][];
+	    sectionPages = new int[coff.getNumSections()][];
+	}
+
+	/**
+	 * Return the executable this image was loaded from. The <tt>Coff</tt>
+	 * belongs to the cache and must not be closed by its users.
+	 *
+	 * @return	the executable.
+	 */
+	public Coff getCoff() {
+	    return coff;
+	}
+
+	private void free() {
+	    for (int s=0; s<sectionFrames.length; s++) {
+		if (sectionFrames[s] != null) {
+		    UserKernel.pagesFree(sectionFrames[s]);
+		    sectionFrames[s] = null;
+		    sectionPages[s] = null;
+		}
+	    }
+
+	    coff.close();
+	}
+
+	private String name;
+	private long modified;
+	private Coff coff;
+	private ExecutableFile file;
+	private int users = 0;
+	private boolean stale = false;
+
+	/** The cache's own reference to each loaded read-only section. */
+	private TranslationEntry[][] sectionFrames;
+	private int[][] sectionPages;
+    }
+
+    /**
+     * The executable file behind a cached <tt>Coff</tt>. The underlying file
+     * can be closed while the image is unused and opened again later; the
+     * <tt>Coff</tt> and its sections keep reading through this object.
+     */
+    private static class ExecutableFile extends OpenFile {
+	ExecutableFile(OpenFile file) {
+	    super(file.getFileSystem(), file.getName());
+	    this.file = file;
+	    length = file.length();
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    Lib.assertTrue(file != null);
+	    return file.read(pos, buf, offset, length);
+	}
+
+	public int length() {
+	    return length;
+	}
+
+	public void close() {
+	    suspend();
+	}
+
+	/** Close the underlying file until <tt>reopen()</tt> is called. */
+	void suspend() {
+	    if (file != null) {
+		file.close();
+		file = null;
+	    }
+	}
+
+	/**
+	 * Open the underlying file again, if it was closed. Several users of
+	 * an image may call this at once; only the first opens the file.
+	 *
+	 * @return	<tt>true</tt> if the file is open.
+	 */
+	boolean reopen() {
+	    openLock.acquire();
+
+	    if (file == null)
+		file = getFileSystem().open(getName(), false);
+
+	    boolean open = file != null;
+	    openLock.release();
+
+	    if (!open)
+		Lib.debug(dbgCache, "\treopen of " + getName() + " failed");
+	    return open;
+	}
+
+	private OpenFile file;
+	private int length;
+	private Lock openLock = new Lock();
+    }
+
+    /**
+     * Print how many executions reused a cached image, and how many had to
+     * read the executable's headers.
+     */
+    public void printStats() {
+	System.out.println("Exec cache: hits " + numHits + ", misses " +
+			   numMisses);
+    }
+
+    /** The number of executions that reused a cached image. */
+    private int numHits = 0;
+    /** The number of executions that had to read the executable's headers. */
+    private int numMisses = 0;
+
+    private int maxImages;
+
+    /** Cached images, least recently used first. */
+    private LinkedHashMap<String, Image> images =
+	new LinkedHashMap<String, Image>(16, 0.75f, true);
+    private Lock cacheLock = new Lock();
+
+    private static final char dbgCache = 'x';
+}
@@ -0,0 +1,204 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A process's table of file descriptors. Each descriptor refers to an open
+ * file description: an <tt>OpenFile</tt> together with a count of the
+ * descriptors referring to it. <tt>dup()</tt> and <tt>fork()</tt> add
+ * descriptors for the same description, so they share the file position, and
+ * the file is only closed when its last descriptor is.
+ *
+ * <p>
+ * The table starts small and grows as descriptors are allocated, up to
+ * <tt>FileTable.maxFiles</tt> descriptors. A bitmap of the descriptors in
+ * use finds the lowest free one without scanning the table.
+ */
+public class FileTable {
+    /**
+     * Allocate a new, empty file table.
+     */
+    public FileTable() {
+	maxFiles = Config.getInteger("FileTable.maxFiles", 256);
+    }
+
+    /**
+     * Add a descriptor for a newly opened file, which gets a description of
+     * its own.
+     *
+     * @param	file	the open file.
+     * @return	the lowest free descriptor, now referring to <i>file</i>, or
+     *		-1 if the table is full. If the table is full the file is
+     *		left open.
+     */
+    public int add(OpenFile file) {
+	return insert(new Description(file));
+    }
+
+    /**
+     * Add another descriptor for the same description as an existing one.
+     *
+     * @param	fd	the existing descriptor.
+     * @return	the lowest free descriptor, or -1 if <i>fd</i> is not open or
+     *		the table is full.
+     */
+    public int dup(int fd) {
+	Description description = lookup(fd);
+	if (description == null)
+	    return -1;
+
+	return insert(description);
+    }
+
+    /**
+     * Make a descriptor of this table refer to the same description as a
+     * descriptor of another table, closing whatever it referred to before.
+     * If <i>fromFd</i> is not open in <i>from</i>, <i>fd</i> is just closed.
+     *
+     * @param	fd	the descriptor to set in this table.
+     * @param	from	the table to share a description from.
+     * @param	fromFd	the descriptor of the description in <i>from</i>.
+     */
+    public void share(int fd, FileTable from, int fromFd) {
+	Lib.assertTrue(fd >= 0 && fd < maxFiles);
+
+	close(fd);
+
+	Description description = from.lookup(fromFd);
+	if (description == null)
+	    return;
+
+	ensureCapacity(fd);
+	place(fd, description);
+    }
+
+    /**
+     * Make every descriptor of this table refer to the same description as
+     * in another table, as a forked child's table does.
+     *
+     * @param	from	the table to copy.
+     */
+    public void shareAll(FileTable from) {
+	closeAll();
+
+	for (int fd = from.used.nextSetBit(0); fd >= 0;
+	     fd = from.used.nextSetBit(fd+1))
+	    share(fd, from, fd);
+    }
+
+    /**
+     * Return the file a descriptor refers to.
+     *
+     * @param	fd	the descriptor.
+     * @return	the open file, or <tt>null</tt> if <i>fd</i> is not open.
+     */
+    public OpenFile get(int fd) {
+	Description description = lookup(fd);
+	if (description == null)
+	    return null;
+
+	return description.file;
+    }
+
+    /**
+     * Close a descriptor. The file itself is closed if this was the last
+     * descriptor referring to its description.
+     *
+     * @param	fd	the descriptor to close.
+     * @return	<tt>true</tt> if <i>fd</i> was open.
+     */
+    public boolean close(int fd) {
+	Description description = lookup(fd);
+	if (description == null)
+	    return false;
+
+	files[fd] = null;
+	used.clear(fd);
+
+	descriptionLock.acquire();
+	boolean last = (--description.references == 0);
+	descriptionLock.release();
+
+	if (last)
+	    description.file.close();
+
+	return true;
+    }
+
+    /**
+     * Close every descriptor.
+     */
+    public void closeAll() {
+	for (int fd = used.nextSetBit(0); fd >= 0; fd = used.nextSetBit(fd+1))
+	    close(fd);
+    }
+
+    /**
+     * Return the next open descriptor at or after <i>fd</i>, to iterate over
+     * the open descriptors.
+     *
+     * @param	fd	the descriptor to start looking at.
+     * @return	the next open descriptor, or -1 if there are no more.
+     */
+    public int nextOpen(int fd) {
+	return used.nextSetBit(Math.max(fd, 0));
+    }
+
+    private Description lookup(int fd) {
+	if (fd < 0 || fd >= files.length)
+	    return null;
+
+	return files[fd];
+    }
+
+    private int insert(Description description) {
+	int fd = used.nextClearBit(0);
+	if (fd >= maxFiles)
+	    return -1;
+
+	ensureCapacity(fd);
+	place(fd, description);
+
+	return fd;
+    }
+
+    private void ensureCapacity(int fd) {
+	if (fd >= files.length)
+	    files = Arrays.copyOf(files, Math.min(Math.max(files.length*2, fd+1),
+						  maxFiles));
+    }
+
+    private void place(int fd, Description description) {
+	descriptionLock.acquire();
+	description.references++;
+	descriptionLock.release();
+
+	files[fd] = description;
+	used.set(fd);
+    }
+
+    /**
+     * An open file description, shared by every descriptor referring to it.
+     */
+    private static class Description {
+	Description(OpenFile file) {
+	    this.file = file;
+	}
+
+	OpenFile file;
+	/** The number of descriptors, in any table, referring to this. */
+	int references = 0;
+    }
+
+    private Description[] files = new Description[16];
+    private BitSet used = new BitSet();
+    private int maxFiles;
+
+    /** Protects the reference counts of descriptions shared between tables. */
+    private static Lock descriptionLock = new Lock();
+}
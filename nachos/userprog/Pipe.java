@@ -0,0 +1,235 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.LinkedList;
+
+/**
+ * A one-way byte stream between processes, kept entirely in kernel memory.
+ * Bytes written to the write end are held in a bounded ring buffer until they
+ * are read from the read end. Like <tt>SynchConsole</tt>, the ends are
+ * accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * A reader only waits when the buffer is empty, and a writer only when it is
+ * full. Once every write end is closed, reads return the remaining bytes and
+ * then 0; once every read end is closed, writes fail.
+ */
+public class Pipe {
+    /**
+     * Allocate a new pipe, with a buffer of <tt>Pipe.bufferSize</tt> bytes.
+     * The pipe has no ends until they are opened.
+     */
+    public Pipe() {
+	buffer = new byte[Config.getInteger("Pipe.bufferSize", 4096)];
+    }
+
+    /**
+     * Return an <tt>OpenFile</tt> that reads from this pipe.
+     *
+     * @return	a new read end of this pipe.
+     */
+    public OpenFile openForReading() {
+	return open(true);
+    }
+
+    /**
+     * Return an <tt>OpenFile</tt> that writes to this pipe.
+     *
+     * @return	a new write end of this pipe.
+     */
+    public OpenFile openForWriting() {
+	return open(false);
+    }
+
+    private OpenFile open(boolean reading) {
+	lock.acquire();
+	if (reading)
+	    readers++;
+	else
+	    writers++;
+	lock.release();
+
+	return new File(reading);
+    }
+
+    private int read(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	while (count == 0 && writers > 0)
+	    notEmpty.sleep();
+
+	int amount = Math.min(length, count);
+
+	// the bytes may wrap around the end of the buffer
+	int first = Math.min(amount, buffer.length - head);
+	System.arraycopy(buffer, head, buf, offset, first);
+	System.arraycopy(buffer, 0, buf, offset+first, amount-first);
+
+	head = (head + amount) % buffer.length;
+	count -= amount;
+
+	if (amount > 0) {
+	    notFull.wakeAll();
+	    wakePollers();
+	}
+
+	lock.release();
+	return amount;
+    }
+
+    private int write(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	int written = 0;
+	while (written < length) {
+	    while (count == buffer.length && readers > 0)
+		notFull.sleep();
+
+	    if (readers == 0)
+		break;
+
+	    int amount = Math.min(length - written, buffer.length - count);
+	    int tail = (head + count) % buffer.length;
+
+	    int first = Math.min(amount, buffer.length - tail);
+	    System.arraycopy(buf, offset+written, buffer, tail, first);
+	    System.arraycopy(buf, offset+written+first, buffer, 0, amount-first);
+
+	    count += amount;
+	    written += amount;
+
+	    notEmpty.wakeAll();
+	    wakePollers();
+	}
+
+	lock.release();
+
+	if (written == 0 && length > 0)
+	    return -1;
+
+	return written;
+    }
+
+    private void close(boolean reading) {
+	lock.acquire();
+
+	if (reading)
+	    readers--;
+	else
+	    writers--;
+
+	// let waiting readers see the end of the stream, and waiting writers
+	// see that nobody will read what they write
+	notEmpty.wakeAll();
+	notFull.wakeAll();
+	wakePollers();
+
+	lock.release();
+    }
+
+    private int readyEvents(boolean reading) {
+	lock.acquire();
+
+	int events = 0;
+	if (reading) {
+	    if (count > 0 || writers == 0)
+		events |= Pollable.pollIn;
+	    if (writers == 0)
+		events |= Pollable.pollHup;
+	}
+	else {
+	    if (count < buffer.length || readers == 0)
+		events |= Pollable.pollOut;
+	    if (readers == 0)
+		events |= Pollable.pollErr;
+	}
+
+	lock.release();
+	return events;
+    }
+
+    private void addPoller(Semaphore waiter) {
+	lock.acquire();
+	pollers.add(waiter);
+	lock.release();
+    }
+
+    private void removePoller(Semaphore waiter) {
+	lock.acquire();
+	pollers.remove(waiter);
+	lock.release();
+    }
+
+    /**
+     * Wake every thread polling either end. Called with the lock held.
+     */
+    private void wakePollers() {
+	for (Semaphore waiter : pollers)
+	    waiter.V();
+    }
+
+    private byte[] buffer;
+    /** The index of the oldest buffered byte, and the number of bytes. */
+    private int head = 0, count = 0;
+    /** The number of open read and write ends. */
+    private int readers = 0, writers = 0;
+
+    private Lock lock = new Lock();
+    private Condition notEmpty = new Condition(lock);
+    private Condition notFull = new Condition(lock);
+    /** Signalled whenever either end may have become ready. */
+    private LinkedList<Semaphore> pollers = new LinkedList<Semaphore>();
+
+    /**
+     * One end of a pipe.
+     */
+    private class File extends OpenFile implements Pollable {
+	File(boolean reading) {
+	    super(null, "Pipe");
+
+	    this.reading = reading;
+	}
+
+	public void close() {
+	    if (!closed) {
+		closed = true;
+		Pipe.this.close(reading);
+	    }
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    if (!reading || closed)
+		return -1;
+
+	    return Pipe.this.read(buf, offset, length);
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    if (reading || closed)
+		return -1;
+
+	    return Pipe.this.write(buf, offset, length);
+	}
+
+	public int readyEvents() {
+	    if (closed)
+		return 0;
+
+	    return Pipe.this.readyEvents(reading);
+	}
+
+	public void addWaiter(Semaphore waiter) {
+	    addPoller(waiter);
+	}
+
+	public void removeWaiter(Semaphore waiter) {
+	    removePoller(waiter);
+	}
+
+	private boolean reading;
+	private boolean closed = false;
+    }
+}
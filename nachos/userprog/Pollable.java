@@ -0,0 +1,49 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * An open file whose reads or writes may have to wait, such as the console or
+ * a pipe, and which <tt>poll()</tt> can therefore wait on. Files that are not
+ * pollable, such as disk files, never make a reader or writer wait.
+ */
+public interface Pollable {
+    /**
+     * Return which events are ready now: <tt>pollIn</tt> if a read would
+     * return without waiting, <tt>pollOut</tt> if a write would, and
+     * <tt>pollHup</tt> or <tt>pollErr</tt> if the other end of the stream
+     * has gone away.
+     *
+     * @return	the ready events.
+     */
+    public int readyEvents();
+
+    /**
+     * Call <tt>V()</tt> on a semaphore whenever this file may have become
+     * ready, until the semaphore is removed. The semaphore may be signalled
+     * when nothing is ready, so the waiter must check again.
+     *
+     * @param	waiter	the semaphore to signal.
+     */
+    public void addWaiter(Semaphore waiter);
+
+    /**
+     * Stop signalling a semaphore added with <tt>addWaiter()</tt>.
+     *
+     * @param	waiter	the semaphore.
+     */
+    public void removeWaiter(Semaphore waiter);
+
+    /** A read would not wait. */
+    public static final int pollIn = 0x01;
+    /** A write would not wait. */
+    public static final int pollOut = 0x04;
+    /** Writing would fail, because nobody can read what is written. */
+    public static final int pollErr = 0x08;
+    /** Nobody can write any more, so reading will soon reach the end. */
+    public static final int pollHup = 0x10;
+    /** The file descriptor is not open. */
+    public static final int pollNval = 0x20;
+}
@@ -0,0 +1,85 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * A kernel-wide table of processes, indexed by process ID. Looking up, adding
+ * and removing a process take constant time. The IDs of removed processes are
+ * handed out again, oldest first, so an ID is not reused sooner than it has
+ * to be.
+ *
+ * <p>
+ * A process stays in the table after it exits, until its parent has
+ * collected its exit status, so that its ID cannot be given to another
+ * process in the meantime.
+ *
+ * <p>
+ * The table does no locking of its own; callers must synchronize access.
+ */
+public class ProcessTable {
+    /**
+     * Allocate a new, empty process table.
+     */
+    public ProcessTable() {
+    }
+
+    /**
+     * Add a process to the table and assign it an ID.
+     *
+     * @param	process	the process to add.
+     * @return	the new process's ID.
+     */
+    public int add(UserProcess process) {
+	int pid;
+	if (!freePids.isEmpty()) {
+	    pid = freePids.removeFirst();
+	}
+	else {
+	    if (nextUnusedPid == processes.length)
+		processes = Arrays.copyOf(processes, processes.length*2);
+	    pid = nextUnusedPid++;
+	}
+
+	processes[pid] = process;
+
+	return pid;
+    }
+
+    /**
+     * Return the process with the specified ID.
+     *
+     * @param	pid	the process ID.
+     * @return	the process, or <tt>null</tt> if there is no such process.
+     */
+    public UserProcess get(int pid) {
+	if (pid < 0 || pid >= nextUnusedPid)
+	    return null;
+
+	return processes[pid];
+    }
+
+    /**
+     * Remove a process from the table, making its ID available again. ID 0
+     * belongs to the first process, which alone may halt the machine, so it
+     * is never reused.
+     *
+     * @param	pid	the ID of the process to remove.
+     */
+    public void remove(int pid) {
+	Lib.assertTrue(get(pid) != null);
+
+	processes[pid] = null;
+
+	if (pid != 0)
+	    freePids.add(pid);
+    }
+
+    private UserProcess[] processes = new UserProcess[16];
+    private int nextUnusedPid = 0;
+    private LinkedList<Integer> freePids = new LinkedList<Integer>();
+}
@@ -0,0 +1,131 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The resources used by a single process: processor time, split into time
+ * spent running the program and time the kernel spent on its behalf,
+ * syscalls made, bytes transferred by <tt>read()</tt> and <tt>write()</tt>,
+ * and page faults.
+ *
+ * <p>
+ * Time is charged by the process's <tt>UThread</tt>s, at context switches and
+ * when entering and leaving the kernel, so time spent waiting is not charged
+ * to anyone.
+ */
+public class ResourceUsage {
+    /**
+     * Allocate a new set of counters, all zero.
+     */
+    public ResourceUsage() {
+    }
+
+    /**
+     * Charge processor time to this process.
+     *
+     * @param	ticks	the number of ticks.
+     * @param	inKernel	<tt>true</tt> if the kernel was running on
+     *				behalf of the process.
+     */
+    public void chargeTime(long ticks, boolean inKernel) {
+	if (inKernel)
+	    kernelTicks += ticks;
+	else
+	    userTicks += ticks;
+    }
+
+    /**
+     * Count a syscall.
+     *
+     * @param	syscall	the syscall number.
+     */
+    public void countSyscall(int syscall) {
+	numSyscalls++;
+	if (syscall >= 0 && syscall < syscallCounts.length)
+	    syscallCounts[syscall]++;
+    }
+
+    /**
+     * Return the number of syscalls made with the specified number.
+     *
+     * @param	syscall	the syscall number.
+     * @return	the number of calls.
+     */
+    public int getSyscallCount(int syscall) {
+	if (syscall < 0 || syscall >= syscallCounts.length)
+	    return 0;
+
+	return syscallCounts[syscall];
+    }
+
+    /**
+     * Return the counters in the layout of <tt>struct rusage</tt> in
+     * <tt>syscall.h</tt>: one 32-bit word each for user ticks, kernel
+     * ticks, syscalls, bytes read, bytes written and page faults.
+     *
+     * @return	the counters, in guest byte order.
+     */
+    public byte[] toBytes() {
+	int[] fields = {
+	    (int) userTicks, (int) kernelTicks, numSyscalls,
+	    (int) bytesRead, (int) bytesWritten, numPageFaults
+	};
+
+	byte[] bytes = new byte[fields.length*4];
+	for (int i=0; i<fields.length; i++)
+	    Lib.bytesFromInt(bytes, i*4, fields[i]);
+
+	return bytes;
+    }
+
+    /**
+     * Print the counters, one line per kind of resource, with the calls to
+     * each syscall that was used.
+     *
+     * @param	name	the name to print the counters under.
+     */
+    public void print(String name) {
+	System.out.println(name + ": ticks: user " + userTicks +
+			   ", kernel " + kernelTicks);
+	System.out.println(name + ": I/O: read " + bytesRead +
+			   " bytes, wrote " + bytesWritten + " bytes");
+
+	// page fault frequency, over the time the process was running
+	String frequency = "";
+	long ticks = userTicks + kernelTicks;
+	if (ticks > 0) {
+	    long hundredths = numPageFaults*100000L / ticks;
+	    frequency = ", " + (hundredths/100) + "." + (hundredths/10%10) +
+		(hundredths%10) + " per 1000 ticks";
+	}
+	System.out.println(name + ": paging: page faults " + numPageFaults +
+			   frequency);
+
+	String calls = "";
+	for (int i=0; i<syscallCounts.length; i++) {
+	    if (syscallCounts[i] != 0)
+		calls += " " + i + ":" + syscallCounts[i];
+	}
+	System.out.println(name + ": syscalls: " + numSyscalls + calls);
+    }
+
+    /** Ticks spent running the program. */
+    public long userTicks = 0;
+    /** Ticks the kernel spent handling the program's exceptions. */
+    public long kernelTicks = 0;
+    /** Bytes transferred by <tt>read()</tt>. */
+    public long bytesRead = 0;
+    /** Bytes transferred by <tt>write()</tt>. */
+    public long bytesWritten = 0;
+    /** Faults on pages that were not mapped or not yet writable. */
+    public int numPageFaults = 0;
+    /** The total number of syscalls. */
+    public int numSyscalls = 0;
+
+    private int[] syscallCounts = new int[maxSyscall+1];
+
+    /** The highest syscall number counted individually. */
+    private static final int maxSyscall = 31;
+}
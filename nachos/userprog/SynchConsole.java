@@ -4,9 +4,18 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.LinkedList;
+
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output is buffered: bytes written are queued in a ring buffer and sent one
+ * at a time by the send interrupt handler, so a writer only waits when the
+ * buffer is full. Input is buffered too: the receive interrupt handler
+ * appends each byte to an input buffer, and reading the console as a file
+ * returns whole lines from it.
  */
 public class SynchConsole {
     /**
@@ -16,6 +25,11 @@ public class SynchConsole {
      */
     public SynchConsole(SerialConsole console) {
 	this.console = console;
+
+	outputBuffer =
+	    new byte[Math.max(1, Config.getInteger("SynchConsole.outputBufferSize", 1024))];
+	inputBuffer =
+	    new byte[Math.max(1, Config.getInteger("SynchConsole.inputBufferSize", 256))];
 	
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -37,26 +51,72 @@ public class SynchConsole {
      *		and no byte was available.
      */
     public int readByte(boolean block) {
-	int value;
-	boolean intStatus = Machine.interrupt().disable();	
+	int value = -1;
 	readLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();	
 
-	if (block || charAvailable) {
-	    charAvailable = false;
+	while (block && inputCount == 0) {
+	    readerWaiting = true;
 	    readWait.P();
-
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
 	}
-	else {
-	    value = -1;
+
+	if (inputCount > 0) {
+	    byte[] b = new byte[1];
+	    takeInput(b, 0, 1);
+	    value = b[0] & 0xFF;
 	}
 
-	readLock.release();
 	Machine.interrupt().restore(intStatus);
+	readLock.release();
 	return value;
     }
 
+    /**
+     * Return the buffered input up to the end of the newest complete line,
+     * without waiting. Every complete line buffered so far is returned at
+     * once, as far as <i>length</i> allows, but never the partial line after
+     * them. A partial line is only returned once it fills the input buffer,
+     * since no newline could fit after it.
+     *
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the index in <i>buf</i> of the first byte to store.
+     * @param	length	the largest number of bytes to return.
+     * @return	the number of bytes returned, or 0 if no complete line has
+     *		arrived yet.
+     */
+    public int readLine(byte[] buf, int offset, int length) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int amount = takeInput(buf, offset, Math.min(length, lineLength));
+
+	Machine.interrupt().restore(intStatus);
+	return amount;
+    }
+
+    /**
+     * Remove bytes from the front of the input buffer. Called with
+     * interrupts disabled.
+     */
+    private int takeInput(byte[] buf, int offset, int length) {
+	int amount = Math.min(length, inputCount);
+
+	// the bytes may wrap around the end of the buffer
+	int first = Math.min(amount, inputBuffer.length - inputHead);
+	System.arraycopy(inputBuffer, inputHead, buf, offset, first);
+	System.arraycopy(inputBuffer, 0, buf, offset+first, amount-first);
+
+	inputHead = (inputHead + amount) % inputBuffer.length;
+	inputCount -= amount;
+	lineLength = Math.max(0, lineLength - amount);
+
+	if (inputStalled && amount > 0) {
+	    inputStalled = false;
+	    receiveInterrupt();
+	}
+
+	return amount;
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to read this as a file.
      *
@@ -67,19 +127,94 @@ public class SynchConsole {
     }
 
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	// leave the byte in the console until there is room for it; the
+	// console receives nothing more until it is taken
+	if (inputCount == inputBuffer.length) {
+	    inputStalled = true;
+	    return;
+	}
+
+	int value = console.readByte();
+	if (value == -1)
+	    return;
+
+	inputBuffer[(inputHead + inputCount) % inputBuffer.length] = (byte) value;
+	inputCount++;
+
+	if (value == '\n' || inputCount == inputBuffer.length) {
+	    lineLength = inputCount;
+	    wakePollers();
+	}
+
+	if (readerWaiting) {
+	    readerWaiting = false;
+	    readWait.V();
+	}
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Send a byte. Blocks only if the output buffer is full; the byte is sent
+     * some time after this returns.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
+	writeBytes(new byte[] { (byte) value }, 0, 1);
+    }
+
+    /**
+     * Send a run of bytes. Copies as much as fits into the output buffer at
+     * once, and blocks only while the buffer is full.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the index of the first byte to send.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (length > 0) {
+	    if (outputCount == outputBuffer.length) {
+		writerWaiting = true;
+		writeWait.P();
+		continue;
+	    }
+
+	    int amount = Math.min(length, outputBuffer.length - outputCount);
+	    int tail = (outputHead + outputCount) % outputBuffer.length;
+
+	    // the bytes may wrap around the end of the buffer
+	    int first = Math.min(amount, outputBuffer.length - tail);
+	    System.arraycopy(buf, offset, outputBuffer, tail, first);
+	    System.arraycopy(buf, offset+first, outputBuffer, 0, amount-first);
+
+	    outputCount += amount;
+	    offset += amount;
+	    length -= amount;
+
+	    if (!sending)
+		sendNext();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	writeLock.release();
+    }
+
+    /**
+     * Wait until every buffered byte has been sent. Must be called before
+     * halting the machine, or output still in the buffer is lost.
+     */
+    public void flush() {
+	writeLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (sending) {
+	    writerWaiting = true;
+	    writeWait.P();
+	}
+
+	Machine.interrupt().restore(intStatus);
 	writeLock.release();
     }
 
@@ -92,19 +227,80 @@ public class SynchConsole {
 	return new File(false, true);
     }
 
+    /**
+     * Hand the oldest buffered byte to the console. Called with interrupts
+     * disabled.
+     */
+    private void sendNext() {
+	sending = (outputCount > 0);
+	if (sending) {
+	    console.writeByte(outputBuffer[outputHead]);
+	    outputHead = (outputHead + 1) % outputBuffer.length;
+	    outputCount--;
+	}
+    }
+
     private void sendInterrupt() {
-	writeWait.V();
+	sendNext();
+
+	// wake a blocked writer once there is room for a good batch of bytes,
+	// rather than once per byte
+	if (writerWaiting &&
+	    (!sending || outputCount <= outputBuffer.length/2)) {
+	    writerWaiting = false;
+	    writeWait.V();
+	}
+
+	// the buffer was full until now
+	if (outputCount == outputBuffer.length-1)
+	    wakePollers();
+    }
+
+    private void addPoller(Semaphore waiter) {
+	boolean intStatus = Machine.interrupt().disable();
+	pollers.add(waiter);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private void removePoller(Semaphore waiter) {
+	boolean intStatus = Machine.interrupt().disable();
+	pollers.remove(waiter);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wake every thread polling the console. Called with interrupts
+     * disabled.
+     */
+    private void wakePollers() {
+	for (Semaphore waiter : pollers)
+	    waiter.V();
     }
 
-    private boolean charAvailable = false;
+    private byte[] inputBuffer;
+    /** The index of the oldest buffered input byte, and the number of bytes. */
+    private int inputHead = 0, inputCount = 0;
+    /** The number of buffered input bytes that make up complete lines. */
+    private int lineLength = 0;
+    private boolean readerWaiting = false;
+    private boolean inputStalled = false;
+
+    private byte[] outputBuffer;
+    /** The index of the oldest buffered byte, and the number of bytes. */
+    private int outputHead = 0, outputCount = 0;
+    /** Whether the console is busy sending a byte. */
+    private boolean sending = false;
+    private boolean writerWaiting = false;
 
     private SerialConsole console;
     private Lock readLock = new Lock();
     private Lock writeLock = new Lock();
     private Semaphore readWait = new Semaphore(0);
     private Semaphore writeWait = new Semaphore(0);
+    /** Signalled when a line arrives or output space frees up. */
+    private LinkedList<Semaphore> pollers = new LinkedList<Semaphore>();
 
-    private class File extends OpenFile {
+    private class File extends OpenFile implements Pollable {
 	File(boolean canRead, boolean canWrite) {
 	    super(null, "SynchConsole");
 	    
@@ -120,28 +316,35 @@ public class SynchConsole {
 	    if (!canRead)
 		return 0;
 
-	    int i;
-	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
-		if (value == -1)
-		    break;
-		
-		buf[offset+i] = (byte) value;
-	    }
-
-	    return i;
+	    return SynchConsole.this.readLine(buf, offset, length);
 	}
 
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
 	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
+	    SynchConsole.this.writeBytes(buf, offset, length);
 	    
 	    return length;
 	}
 
+	public int readyEvents() {
+	    int events = 0;
+	    if (canRead && lineLength > 0)
+		events |= pollIn;
+	    if (canWrite && outputCount < outputBuffer.length)
+		events |= pollOut;
+	    return events;
+	}
+
+	public void addWaiter(Semaphore waiter) {
+	    addPoller(waiter);
+	}
+
+	public void removeWaiter(Semaphore waiter) {
+	    removePoller(waiter);
+	}
+
 	private boolean canRead, canWrite;
     }
 }
@@ -25,7 +25,14 @@ public class UThread extends KThread {
     }
 
     private void runProgram() {
-	process.initRegisters();
+	if (initialRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		Machine.processor().writeRegister(i, initialRegisters[i]);
+	    initialRegisters = null;
+	}
+	else {
+	    process.initRegisters();
+	}
 	process.restoreState();
 
 	Machine.processor().run();
@@ -37,6 +44,7 @@ public class UThread extends KThread {
      * Save state before giving up the processor to another thread.
      */
     protected void saveState() {
+	chargeTime();
 	process.saveState();
 
 	for (int i=0; i<Processor.numUserRegisters; i++)
@@ -55,8 +63,43 @@ public class UThread extends KThread {
 	    Machine.processor().writeRegister(i, userRegisters[i]);
 	
 	process.restoreState();
+
+	lastChargeTime = Machine.timer().getTime();
+    }
+
+    /**
+     * Called by <tt>UserKernel.exceptionHandler()</tt> when this thread
+     * starts handling an exception, so the time until it is done is charged
+     * to its process as kernel time.
+     */
+    void enterKernel() {
+	chargeTime();
+	inKernel = true;
+    }
+
+    /**
+     * Called by <tt>UserKernel.exceptionHandler()</tt> when this thread
+     * returns to running the program.
+     */
+    void leaveKernel() {
+	chargeTime();
+	inKernel = false;
+    }
+
+    /**
+     * Charge the time since this thread last started running, entered or
+     * left the kernel to its process.
+     */
+    void chargeTime() {
+	long now = Machine.timer().getTime();
+	process.usage.chargeTime(now - lastChargeTime, inKernel);
+	lastChargeTime = now;
     }
 
+    /** The time of the last call to <tt>chargeTime()</tt>. */
+    private long lastChargeTime;
+    private boolean inKernel = false;
+
     /**
      * Storage for the user register set.
      *
@@ -72,4 +115,12 @@ public class UThread extends KThread {
      * The process to which this thread belongs.
      */
     public UserProcess process;
+
+    /** This thread's ID within its process. */
+    public int threadID = 0;
+
+    /** The thread stack this thread runs on, or -1 for the main stack. */
+    int stackSlot = -1;
+    /** Registers to start with, in place of the process's initial ones. */
+    int[] initialRegisters = null;
 }
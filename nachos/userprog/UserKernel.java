@@ -35,7 +35,11 @@ public class UserKernel extends ThreadedKernel {
 		eachPage= new TranslationEntry(0,i,false,false,false,false);
 		freePhysicalPages.add(eachPage);
 	}
+	frameReferences = new int[numPhysPages];
 	pagesLock = new Lock();
+
+	executableCache = new ExecutableCache();
+	asyncIO = new AsyncIO();
     }
     
 
@@ -56,6 +60,7 @@ public class UserKernel extends ThreadedKernel {
 	}
 	while (c != 'q');
 
+	console.flush();
 	System.out.println("");
     }
 
@@ -87,9 +92,13 @@ public class UserKernel extends ThreadedKernel {
     public void exceptionHandler() {
 	Lib.assertTrue(KThread.currentThread() instanceof UThread);
 
-	UserProcess process = ((UThread) KThread.currentThread()).process;
+	UThread thread = (UThread) KThread.currentThread();
+	UserProcess process = thread.process;
 	int cause = Machine.processor().readRegister(Processor.regCause);
+
+	thread.enterKernel();
 	process.handleException(cause);
+	thread.leaveKernel();
     }
     
     /**
@@ -106,6 +115,11 @@ public class UserKernel extends ThreadedKernel {
     		for(int i = 0; i < numPages; i++){
     			abtainedPages[i] = freePhysicalPages.remove();
     			abtainedPages[i].valid = true;
+    			abtainedPages[i].readOnly = false;
+    			abtainedPages[i].used = false;
+    			abtainedPages[i].dirty = false;
+    			abtainedPages[i].numPages = 1;
+    			frameReferences[abtainedPages[i].ppn] = 1;
     		}
     	}
     	pagesLock.release();
@@ -116,17 +130,94 @@ public class UserKernel extends ThreadedKernel {
     		return abtainedPages;
     	}
     }
+
+    /**
+     * get a run of free physical pages that starts at a multiple of its
+     * length, so it can back a large page
+     * @param numPages the number of pages, a power of two
+     * @return the pages, in order of physical page number
+     */
+    public static TranslationEntry[] getAlignedPages(int numPages) throws NotEnoughPagesException {
+    	pagesLock.acquire();
+    	TranslationEntry[] freeByPPN = new TranslationEntry[frameReferences.length];
+    	for (TranslationEntry page : freePhysicalPages)
+    		freeByPPN[page.ppn] = page;
+
+    	TranslationEntry[] abtainedPages = null;
+    	for (int first = 0; first + numPages <= freeByPPN.length && abtainedPages == null; first += numPages) {
+    		int count = 0;
+    		while (count < numPages && freeByPPN[first + count] != null)
+    			count++;
+    		if (count < numPages)
+    			continue;
+
+    		abtainedPages = new TranslationEntry[numPages];
+    		for (int i = 0; i < numPages; i++) {
+    			abtainedPages[i] = freeByPPN[first + i];
+    			freePhysicalPages.remove(abtainedPages[i]);
+    			abtainedPages[i].valid = true;
+    			abtainedPages[i].readOnly = false;
+    			abtainedPages[i].used = false;
+    			abtainedPages[i].dirty = false;
+    			abtainedPages[i].numPages = 1;
+    			frameReferences[abtainedPages[i].ppn] = 1;
+    		}
+    	}
+    	pagesLock.release();
+    	if (abtainedPages == null)
+    		throw new NotEnoughPagesException();
+    	return abtainedPages;
+    }
     
     /**
-     * free the memory, and append all this free pages back to freePhysicalPages list
-     * @param exitPages (pageTable)
+     * add a reference to a physical page that is already in use, so that it
+     * can be mapped by more than one page table
+     * @param ppn the physical page to share
+     */
+    public static void sharePage(int ppn){
+    	pagesLock.acquire();
+    	Lib.assertTrue(frameReferences[ppn] > 0);
+    	frameReferences[ppn]++;
+    	pagesLock.release();
+    }
+
+    /**
+     * check whether a physical page is mapped by more than one page table
+     * @param ppn the physical page
+     * @return true if the page has more than one reference
+     */
+    public static boolean isPageShared(int ppn){
+    	pagesLock.acquire();
+    	boolean shared = frameReferences[ppn] > 1;
+    	pagesLock.release();
+    	return shared;
+    }
+
+    /**
+     * count the physical pages that are not in use
+     * @return the number of free pages
+     */
+    public static int numFreePages(){
+    	pagesLock.acquire();
+    	int count = freePhysicalPages.size();
+    	pagesLock.release();
+    	return count;
+    }
+
+    /**
+     * free the memory, and append all this free pages back to freePhysicalPages list.
+     * A page that is still mapped somewhere else only loses one reference.
+     * @param exitPages (pageTable), may contain null or invalid entries
      */
     public static void pagesFree(TranslationEntry[] exitPages){
     	pagesLock.acquire();
     	
     	for(TranslationEntry page : exitPages){
+    		if (page == null || !page.valid)
+    			continue;
     		page.valid = false;
-    		freePhysicalPages.add(page);	
+    		if (--frameReferences[page.ppn] == 0)
+    			freePhysicalPages.add(page);
     	}
     	pagesLock.release();
     }
@@ -154,12 +245,21 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	console.flush();
+	executableCache.printStats();
+
 	super.terminate();
     }
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** Globally accessible cache of shared executable images. */
+    public static ExecutableCache executableCache;
+
+    /** Globally accessible pool of asynchronous I/O workers. */
+    public static AsyncIO asyncIO;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
     
@@ -167,7 +267,9 @@ public class UserKernel extends ThreadedKernel {
     private static Lock pagesLock;
     // global linked list of free physical pages
     private static LinkedList <TranslationEntry> freePhysicalPages = new LinkedList<TranslationEntry>();
-    static class NotEnoughPagesException extends Exception {
+    // number of page table entries mapping each physical page
+    private static int[] frameReferences;
+    public static class NotEnoughPagesException extends Exception {
     	private static final long serialVersionUID = 6256028192007727092L;
     }
 }
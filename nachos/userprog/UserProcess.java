@@ -5,8 +5,10 @@ import nachos.threads.*;
 import nachos.userprog.UserKernel.NotEnoughPagesException;
 //import nachos.userprog.UserProcess.MemoryChunk;
 
-import java.io.EOFException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 
 
@@ -28,16 +30,24 @@ public class UserProcess {
 	 */
 	public UserProcess() {
 		pidLock.acquire();
-		pid = nextPid++;
+		pid = processTable.add(this);
 		runningProcesses++;
 		pidLock.release();
 
 		// stdin/stdout
-		fileTable[0] = UserKernel.console.openForReading(); //added on 314
-	    fileTable[1] = UserKernel.console.openForWriting(); // added on 314
+		fileTable.add(UserKernel.console.openForReading()); //added on 314
+	    fileTable.add(UserKernel.console.openForWriting()); // added on 314
 
 		// Exit/Join syncronization
-		joinWaiting = new Condition(joinLock);
+		childExited = new Condition(pidLock);
+
+		maxStackPages = Config.getInteger("UserProcess.maxStackPages", 8);
+		maxHeapPages = Config.getInteger("UserProcess.maxHeapPages", 64);
+		maxArgPages = Config.getInteger("UserProcess.maxArgPages", 4);
+		maxThreads = Config.getInteger("UserProcess.maxThreads", 8);
+		threadStackPages = Config.getInteger("UserProcess.threadStackPages", 4);
+
+		threadExited = new Condition(threadLock);
 	}
 
 	/**
@@ -64,7 +74,7 @@ public class UserProcess {
 	public boolean execute(String name, String[] args) {
 		if (!load(name, args))
 			return false;
-		new UThread(this).setName(name).fork();
+		newThread(-1).setName(name).fork();
 
 		return true;
 	}
@@ -81,7 +91,12 @@ public class UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		Machine.processor().setPageTable(pageTable);
+		// a thread left behind by exit() faults as soon as it runs, and
+		// finishes in the exception handler
+		if (exiting)
+			Machine.processor().setPageTable(new TranslationEntry[0]);
+		else
+			Machine.processor().setPageTable(pageTable);
 	}
 
 
@@ -258,6 +273,167 @@ public class UserProcess {
 		return returnList;
 	}
 
+	/**
+	 * Return the translation entry the kernel should use to access a page of
+	 * this process on its behalf, or <tt>null</tt> if the page cannot be
+	 * accessed that way. A write to a copy-on-write page gets a private copy
+	 * of the page first.
+	 *
+	 * @param vpn
+	 * the virtual page to access.
+	 * @param writing
+	 * <tt>true</tt> if the page will be written.
+	 * @return the entry for the page, or <tt>null</tt>.
+	 */
+	protected TranslationEntry lookupPage(int vpn, boolean writing) {
+		if (exiting || vpn < 0 || vpn >= pageTable.length)
+			return null;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (entry == null || !entry.valid) {
+			if (!handlePageFault(vpn))
+				return null;
+			usage.numPageFaults++;
+		}
+
+		entry = pageTable[vpn];
+		if (writing && entry.readOnly) {
+			if (!handleCopyOnWrite(vpn))
+				return null;
+			usage.numPageFaults++;
+		}
+
+		return pageTable[vpn];
+	}
+
+	/**
+	 * Test whether a virtual page belongs to the heap or stack, whose pages
+	 * start out zero-filled and are only allocated when first touched.
+	 */
+	protected boolean isDemandZero(int vpn) {
+		return vpn >= heapStartPage && vpn < stackTopPage;
+	}
+
+	/**
+	 * Handle a fault on a page that is not mapped. A stack page, or a heap
+	 * page below the program break, is given a fresh zero-filled page.
+	 *
+	 * @param vpn
+	 * the virtual page that was accessed.
+	 * @return <tt>true</tt> if the page is now mapped, or <tt>false</tt> if
+	 * the access was invalid or no memory was left.
+	 */
+	protected boolean handlePageFault(int vpn) {
+		if (exiting)
+			return false;
+
+		boolean inHeap = vpn >= heapStartPage && vpn < Lib.divRoundUp(heapBreak, pageSize);
+		boolean inStack = (vpn >= stackLimitPage && vpn < stackTopPage) || inThreadStack(vpn);
+		if (!inHeap && !inStack)
+			return false;
+
+		if (pageTable[vpn] != null && pageTable[vpn].valid)
+			return true;
+
+		Lib.debug(dbgProcess, "\tzero-filling " + (inHeap ? "heap" : "stack") + " page " + vpn);
+
+		return mapZeroPage(vpn);
+	}
+
+	/**
+	 * Map a virtual page that starts out zero-filled, giving it a fresh
+	 * zero-filled physical page.
+	 *
+	 * @param vpn
+	 * the virtual page.
+	 * @return <tt>true</tt> if the page is now mapped, or <tt>false</tt> if
+	 * no memory was left.
+	 */
+	protected boolean mapZeroPage(int vpn) {
+		TranslationEntry entry;
+		try {
+			entry = getPrivatePages(1)[0];
+		} catch (NotEnoughPagesException e) {
+			Lib.debug(dbgProcess, "\tno memory for page " + vpn);
+			return false;
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+		Arrays.fill(memory, entry.ppn * pageSize, (entry.ppn + 1) * pageSize, (byte) 0);
+
+		entry.vpn = vpn;
+		pageTable[vpn] = entry;
+		return true;
+	}
+
+	/**
+	 * Free the pages of a range of virtual pages that have left the address
+	 * space, such as heap pages above a lowered break. If they are touched
+	 * again they start out zero-filled. Called with
+	 * <tt>memoryAccessLock</tt> held.
+	 *
+	 * @param firstVPN
+	 * the first virtual page of the range.
+	 * @param count
+	 * the number of pages in the range.
+	 */
+	protected void freePages(int firstVPN, int count) {
+		for (int vpn = firstVPN; vpn < firstVPN + count; vpn++) {
+			if (pageTable[vpn] != null) {
+				UserKernel.pagesFree(new TranslationEntry[] { pageTable[vpn] });
+				pageTable[vpn] = null;
+			}
+			if (copyOnWrite != null)
+				copyOnWrite[vpn] = false;
+		}
+	}
+
+	/**
+	 * Give this process a writable copy of a copy-on-write page. If no other
+	 * page table maps the page any more, it is simply made writable.
+	 *
+	 * @param vpn
+	 * the virtual page that was written.
+	 * @return <tt>true</tt> if the page is now writable, or <tt>false</tt> if
+	 * it is not a copy-on-write page or no memory was left to copy it.
+	 */
+	protected boolean handleCopyOnWrite(int vpn) {
+		if (copyOnWrite == null || !copyOnWrite[vpn])
+			return false;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (UserKernel.isPageShared(entry.ppn)) {
+			TranslationEntry copy;
+			try {
+				copy = getPrivatePages(1)[0];
+			} catch (NotEnoughPagesException e) {
+				Lib.debug(dbgProcess, "\tno memory to copy page " + vpn);
+				return false;
+			}
+
+			// making room for the copy may have replaced the page itself, in
+			// which case it is faulted in again instead
+			if (pageTable[vpn] != entry) {
+				UserKernel.pagesFree(new TranslationEntry[] { copy });
+				return lookupPage(vpn, true) != null;
+			}
+
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, entry.ppn * pageSize, memory, copy.ppn * pageSize, pageSize);
+
+			copy.vpn = vpn;
+			copy.used = entry.used;
+			copy.dirty = entry.dirty;
+			pageTable[vpn] = copy;
+			UserKernel.pagesFree(new TranslationEntry[] { entry });
+		} else {
+			entry.readOnly = false;
+		}
+
+		copyOnWrite[vpn] = false;
+		return true;
+	}
+
 	/**
 	 * An inner class to represent a memory access.
 	 */
@@ -287,8 +463,8 @@ public class UserProcess {
 		 */
 		public int readAccess() {
 			if (translationEntry == null)
-				translationEntry = pageTable[vpn];
-			if (translationEntry.valid) {
+				translationEntry = lookupPage(vpn, false);
+			if (translationEntry != null) {
 				System.arraycopy(Machine.processor().getMemory(), pageStart + (Processor.pageSize * translationEntry.ppn), data, dataStart, length);
 				translationEntry.used = true;
 				return length;
@@ -303,14 +479,12 @@ public class UserProcess {
 		 */
 		public int writeAccess() {
 			if (translationEntry == null)
-				translationEntry = pageTable[vpn];
-			if (translationEntry.valid) {
-				if(!translationEntry.readOnly){
-					System.arraycopy(data, dataStart, Machine.processor().getMemory(), pageStart + (Processor.pageSize * translationEntry.ppn), length);
-					translationEntry.used = true;
-					translationEntry.dirty = true;
-					return length;
-				}
+				translationEntry = lookupPage(vpn, true);
+			if (translationEntry != null) {
+				System.arraycopy(data, dataStart, Machine.processor().getMemory(), pageStart + (Processor.pageSize * translationEntry.ppn), length);
+				translationEntry.used = true;
+				translationEntry.dirty = true;
+				return length;
 			}
 			return 0;
 		}		
@@ -332,34 +506,27 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
-
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
+		image = UserKernel.executableCache.acquire(name);
+		if (image == null) {
 			Lib.debug(dbgProcess, "\tcoff load failed");
 			return false;
 		}
+		coff = image.getCoff();
+		executableName = name;
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
 		for (int s=0; s<coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 			if (section.getFirstVPN() != numPages) {
-				coff.close();
+				releaseImage();
 				Lib.debug(dbgProcess, "\tfragmented executable");
 				return false;
 			}
 			numPages += section.getLength();
 		}
 
-		// make sure the argv array will fit in one page
+		// make sure the argv array will fit in the argument area
 		byte[][] argv = new byte[args.length][];
 		int argsSize = 0;
 		for (int i=0; i<args.length; i++) {
@@ -367,8 +534,8 @@ public class UserProcess {
 			// 4 bytes for argv[] pointer; then string plus one for null byte
 			argsSize += 4 + argv[i].length + 1;
 		}
-		if (argsSize > pageSize) {
-			coff.close();
+		if (argsSize > maxArgPages*pageSize) {
+			releaseImage();
 			Lib.debug(dbgProcess, "\targuments too long");
 			return false;
 		}
@@ -376,34 +543,48 @@ public class UserProcess {
 		// program counter initially points at the program entry point
 		initialPC = coff.getEntryPoint();	
 
-		// next comes the stack; stack pointer initially points to top of it
-		numPages += stackPages;
-		initialSP = numPages*pageSize;
+		// the heap starts right after the sections and grows with sbrk()
+		heapStartPage = numPages;
+		heapBreak = numPages*pageSize;
+		numPages += maxHeapPages;
 
-		// and finally reserve 1 page for arguments
-		numPages++;
+		// then room for the stacks of threads made by thread_create()
+		threadStacksPage = numPages;
+		numPages += maxThreads*threadStackPages;
+
+		// next comes the stack; stack pointer initially points to top of it,
+		// less the 16 bytes main() may save its argument registers in, and
+		// stack pages are only allocated once the program touches them
+		stackLimitPage = numPages;
+		numPages += maxStackPages;
+		stackTopPage = numPages;
+		initialSP = numPages*pageSize - 16;
+
+		// and finally reserve as many pages as the arguments need
+		int argPages = Math.max(1, Lib.divRoundUp(argsSize, pageSize));
+		numPages += argPages;
 
 		if (!loadSections())
 			return false;
 
-		// store arguments in last page
-		int entryOffset = (numPages-1)*pageSize;
-		int stringOffset = entryOffset + args.length*4;
-
-		this.argc = args.length;
-		this.argv = entryOffset;
+		// build the argv array and strings in one buffer, and copy it into
+		// the argument pages at once
+		int argsStart = (numPages-argPages)*pageSize;
+		byte[] argsBlock = new byte[argsSize];
+		int stringOffset = args.length*4;
 
 		for (int i=0; i<argv.length; i++) {
-			byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-			Lib.assertTrue(writeVirtualMemory(entryOffset,stringOffsetBytes) == 4);
-			entryOffset += 4;
-			Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) ==
-				argv[i].length);
-			stringOffset += argv[i].length;
-			Lib.assertTrue(writeVirtualMemory(stringOffset,new byte[] { 0 }) == 1);
-			stringOffset += 1;
+			Lib.bytesFromInt(argsBlock, i*4, argsStart + stringOffset);
+			System.arraycopy(argv[i], 0, argsBlock, stringOffset, argv[i].length);
+			// the null byte is already there
+			stringOffset += argv[i].length + 1;
 		}
 
+		this.argc = args.length;
+		this.argv = argsStart;
+
+		Lib.assertTrue(writeVirtualMemory(argsStart, argsBlock) == argsSize);
+
 		return true;
 	}
 
@@ -415,14 +596,43 @@ public class UserProcess {
 	 * @return	<tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
+		pageTable = new TranslationEntry[numPages];
+
 		try {
-			pageTable = ((UserKernel) Kernel.kernel).getPages(numPages);
+			// read-only sections are mapped onto the image's shared pages
+			int numPrivatePages = numPages;
+			for (int s = 0; s < coff.getNumSections(); s++) {
+				CoffSection section = coff.getSection(s);
+				if (!section.isReadOnly())
+					continue;
+
+				int[] pages = UserKernel.executableCache.getSectionPages(image, s);
+				if (pages == null)
+					throw new NotEnoughPagesException();
+
+				Lib.debug(dbgProcess, "\tsharing " + section.getName() + " section (" + section.getLength() + " pages)");
+
+				int firstVPN = section.getFirstVPN();
+				for (int k = 0; k < pages.length; k++)
+					pageTable[k+firstVPN] = new TranslationEntry(k+firstVPN, pages[k], true, true, false, false);
+				numPrivatePages -= pages.length;
+			}
 
-			for (int i = 0; i < pageTable.length; i++)
-				pageTable[i].vpn = i;
+			// the rest of the sections and the arguments get pages of their
+			// own; heap and stack pages are allocated when first touched
+			numPrivatePages -= maxHeapPages + maxThreads*threadStackPages + maxStackPages;
+			TranslationEntry[] privatePages = getPrivatePages(numPrivatePages);
+			for (int i = 0, p = 0; i < pageTable.length; i++) {
+				if (pageTable[i] == null && !isDemandZero(i)) {
+					pageTable[i] = privatePages[p++];
+					pageTable[i].vpn = i;
+				}
+			}
 
 			for (int j = 0; j < coff.getNumSections(); j++) {
 				CoffSection section = coff.getSection(j);
+				if (section.isReadOnly())
+					continue;
 
 				Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
 
@@ -431,7 +641,7 @@ public class UserProcess {
 					section.loadPage(k, pageTable[k+firstVPN].ppn);
 			}
 		} catch (NotEnoughPagesException a) {
-			coff.close();
+			unloadSections();
 			Lib.debug(dbgProcess, "physical memory out of bound");
 			return false;
 		} catch (ClassCastException c) {
@@ -441,10 +651,38 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Allocate physical pages for this process alone. If memory is short,
+	 * executable images that no process is using are evicted first.
+	 */
+	protected TranslationEntry[] getPrivatePages(int count) throws NotEnoughPagesException {
+		try {
+			return UserKernel.getPages(count);
+		} catch (NotEnoughPagesException e) {
+			if (UserKernel.executableCache.evictUnused() == 0)
+				throw e;
+			return UserKernel.getPages(count);
+		}
+	}
+
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		if (pageTable != null)
+			UserKernel.pagesFree(pageTable);
+
+		releaseImage();
+	}
+
+	/**
+	 * Stop using the cached image of this process's executable.
+	 */
+	private void releaseImage() {
+		if (image != null) {
+			UserKernel.executableCache.release(image);
+			image = null;
+		}
 	}
 
 	/**
@@ -457,6 +695,14 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a forked process resumes with its parent's registers
+		if (forkRegisters != null) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkRegisters[i]);
+			forkRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i = 0; i < Processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -477,9 +723,10 @@ public class UserProcess {
 		if (pid != 0)
 			return 0;
 
-		Machine.halt();
+		// let the kernel flush the console and report its statistics
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 		return 0;
 	}
 
@@ -488,51 +735,59 @@ public class UserProcess {
 
 	/** Handle the create() system call. */
     private int handleCreate(int stringAddress) {
-        if (readVirtualMemoryString(stringAddress, maxLen)==null) {
+        String name = readVirtualMemoryString(stringAddress, maxLen);
+        if (name == null || isReservedFile(name)) {
         	return -1;
         }
       
-        int fd = firstOpen();
-        if (fd!=-1) {
-        	fileTable[fd]=ThreadedKernel.fileSystem.open
-        		(readVirtualMemoryString(stringAddress, maxLen),true);
-        	if (fileTable[fd]==null) {
-        		return -1;
-        	} else {
-        		return fd;
-            }
-        } else {
-        	return -1;
-        }
+        return addFile(ThreadedKernel.fileSystem.open(name, true));
     }
 
     /** Handle the open() sytem call. */
     private int handleOpen(int stringAddress) {
-    	if (readVirtualMemoryString(stringAddress, maxLen)==null) {
+    	String name = readVirtualMemoryString(stringAddress, maxLen);
+    	if (name == null || isReservedFile(name)) {
         	return -1;
         }
       
-        int fd = firstOpen();
-        if (fd!=-1) {
-        	fileTable[fd]=ThreadedKernel.fileSystem.open
-        		(readVirtualMemoryString(stringAddress, maxLen),false);
-        	if (fileTable[fd]==null) {
-        		return -1;
-        	} else {
-        		return fd;
-            }
-        } else {
-        	return -1;
-        }
+        return addFile(ThreadedKernel.fileSystem.open(name, false));
+    }
+
+    /**
+     * Test whether a file belongs to the kernel, so that user programs may
+     * not create, open or unlink it.
+     *
+     * @param name
+     * the name of the file.
+     * @return <tt>true</tt> if the file is the kernel's.
+     */
+    protected boolean isReservedFile(String name) {
+    	return false;
+    }
+
+    /**
+     * Give a newly opened file the lowest free file descriptor. The file is
+     * closed again if the file table is full.
+     *
+     * @return the file descriptor, or -1 if the file could not be opened.
+     */
+    private int addFile(OpenFile file) {
+    	if (file == null)
+    		return -1;
+
+    	int fd = fileTable.add(file);
+    	if (fd == -1)
+    		file.close();
+    	return fd;
     }
 
 	/** Handle the read() sytem call. */
     private int handleRead(int fd,int bufferAddress,int length) {
         // check if fd is validate
-    	if (!checkFd(fd)) return -1;  //changed on 314
-    	//if (!checkFd(fd)) return 0;
+    	OpenFile file = fileTable.get(fd);
+    	if (file == null) return -1;  //changed on 314
         byte[] tmp = new byte[length];
-        int readAmount = fileTable[fd].read(tmp, 0, length);
+        int readAmount = file.read(tmp, 0, length);
         if (readAmount < 0) {   // whole if statement changed on 314
         	return -1;
         } else {
@@ -544,6 +799,7 @@ public class UserProcess {
         
         if (written < 0) { return -1;
         } else {
+        	usage.bytesRead += readAmount;
         	return readAmount;
         }
 
@@ -553,48 +809,226 @@ public class UserProcess {
     /** Handle the write() system call.*/
     private int handleWrite(int fd,int bufferAddress,int length) {
     	// check if fd is validate
-    	if (!checkFd(fd)) return -1;  //changed on 314
-    	//if (!checkFd(fd)) return 0;
+    	OpenFile file = fileTable.get(fd);
+    	if (file == null) return -1;  //changed on 314
         byte[] tmp = new byte[length];
         int readAmount = readVirtualMemory(bufferAddress, tmp, 0, length);
         if (readAmount != length) {
         	return -1;
         } else {
-        	return fileTable[fd].write(tmp, 0, length);
+        	int writeAmount = file.write(tmp, 0, length);
+        	if (writeAmount > 0)
+        		usage.bytesWritten += writeAmount;
+        	return writeAmount;
         }
     }
     
     /** Handle the close() system call. */
-    private int handleClose(int fd) {
-    	// check if fd is validate
-        if (!checkFd(fd)) return -1;
-        OpenFile tmp = fileTable[fd];
-        tmp.close();
-        fileTable[fd] = null;
+    protected int handleClose(int fd) {
+        if (!fileTable.close(fd)) return -1;
         return 0;
     }
     
     /** Handle the unlink() system call. */
     private int handleUnlink(int address) {
-    	if (ThreadedKernel.fileSystem.remove
-    			(readVirtualMemoryString(address, maxLen))) {
+    	String name = readVirtualMemoryString(address, maxLen);
+    	if (name != null && !isReservedFile(name) &&
+    			ThreadedKernel.fileSystem.remove(name)) {
     		return 0;
     	}
     	return -1;    	
     }
     
-    private int firstOpen() {
-    	for (int i = 0; i < fileTable.length; i++) {
-    		if (fileTable[i] == null) return i;
+    /**
+     * Handle the pipe() system call. Creates a pipe and stores the file
+     * descriptors of its read and write ends in the two-element array at
+     * <i>fdsAddress</i>.
+     */
+    private int handlePipe(int fdsAddress) {
+    	Pipe pipe = new Pipe();
+
+    	int readFd = addFile(pipe.openForReading());
+    	if (readFd == -1)
+    		return -1;
+
+    	int writeFd = addFile(pipe.openForWriting());
+    	if (writeFd == -1) {
+    		handleClose(readFd);
+    		return -1;
     	}
-    	return -1;
+
+    	byte[] fds = new byte[8];
+    	Lib.bytesFromInt(fds, 0, readFd);
+    	Lib.bytesFromInt(fds, 4, writeFd);
+    	if (writeVirtualMemory(fdsAddress, fds) != fds.length) {
+    		handleClose(readFd);
+    		handleClose(writeFd);
+    		return -1;
+    	}
+
+    	return 0;
     }
 
-    private boolean checkFd(int fd) {
-    	if (fd>15 || fd < 0 || fileTable[fd]==null) {
-        	return false; 
-        }
-    	return true;
+    /** Handle the dup() system call. */
+    private int handleDup(int fd) {
+    	return fileTable.dup(fd);
+    }
+
+    /**
+     * Give a new child the same standard input and output as this process,
+     * in place of the console.
+     */
+    private void inheritStandardFiles(UserProcess child) {
+    	for (int fd = 0; fd <= 1; fd++)
+    		child.fileTable.share(fd, fileTable, fd);
+    }
+
+    /** Handle the aio_read() and aio_write() system calls. */
+    private int handleAsyncIO(int fd, int bufferAddress, int length,
+    		int position, boolean writing) {
+    	OpenFile file = fileTable.get(fd);
+    	// only disk files: a console or pipe could hold a worker forever
+    	if (file == null || file.getFileSystem() == null)
+    		return -1;
+    	if (length < 0 || position < 0)
+    		return -1;
+
+    	byte[] data = new byte[length];
+    	if (writing && readVirtualMemory(bufferAddress, data) != length)
+    		return -1;
+
+    	int id = completions.start();
+    	if (id == -1)
+    		return -1;
+
+    	UserKernel.asyncIO.submit(new FileRequest(id, file, position, data,
+    			bufferAddress, writing));
+    	return id;
+    }
+
+    /** Handle the aio_wait() system call. */
+    private int handleAsyncWait(int ringAddress, int min) {
+    	return completions.await(ringAddress, min);
+    }
+
+    /**
+     * An asynchronous read or write of a disk file, at a given position.
+     * Data to write is copied from the process when the request is made; data
+     * read is copied to the process when it arrives.
+     */
+    private class FileRequest extends AsyncIO.Request {
+    	FileRequest(int id, OpenFile file, int position, byte[] data,
+    			int bufferAddress, boolean writing) {
+    		super(completions, id);
+
+    		this.file = file;
+    		this.position = position;
+    		this.data = data;
+    		this.bufferAddress = bufferAddress;
+    		this.writing = writing;
+    	}
+
+    	protected int perform() {
+    		if (writing) {
+    			int amount = file.write(position, data, 0, data.length);
+    			if (amount > 0)
+    				usage.bytesWritten += amount;
+    			return amount;
+    		}
+
+    		int amount = file.read(position, data, 0, data.length);
+    		if (amount <= 0)
+    			return amount;
+    		if (writeVirtualMemory(bufferAddress, data, 0, amount) != amount)
+    			return -1;
+
+    		usage.bytesRead += amount;
+    		return amount;
+    	}
+
+    	private OpenFile file;
+    	private int position;
+    	private byte[] data;
+    	private int bufferAddress;
+    	private boolean writing;
+    }
+
+    /**
+     * Handle the poll() system call. Waits until one of the <i>count</i>
+     * <tt>struct pollfd</tt> entries at <i>fdsAddress</i> is ready, or until
+     * <i>timeout</i> ticks have passed. A negative timeout waits for ever.
+     */
+    private int handlePoll(int fdsAddress, int count, int timeout) {
+    	if (count < 0 || count > maxPollFds)
+    		return -1;
+
+    	byte[] fds = new byte[count*pollFdSize];
+    	if (readVirtualMemory(fdsAddress, fds) != fds.length)
+    		return -1;
+
+    	final Semaphore wakeup = new Semaphore(0);
+    	final boolean[] timedOut = new boolean[] { timeout == 0 };
+
+    	for (int i = 0; i < count; i++) {
+    		OpenFile file = fileTable.get(Lib.bytesToInt(fds, i*pollFdSize));
+    		if (file instanceof Pollable)
+    			((Pollable) file).addWaiter(wakeup);
+    	}
+
+    	Runnable timeoutHandler = new Runnable() {
+    		public void run() {
+    			timedOut[0] = true;
+    			wakeup.V();
+    		}
+    	};
+    	if (timeout > 0)
+    		ThreadedKernel.alarm.schedule(timeout, timeoutHandler);
+
+    	// waiters are added before checking, so no wakeup can be missed
+    	int numReady;
+    	while ((numReady = checkPollFds(fds, count)) == 0 && !timedOut[0])
+    		wakeup.P();
+
+    	ThreadedKernel.alarm.cancel(timeoutHandler);
+    	for (int i = 0; i < count; i++) {
+    		OpenFile file = fileTable.get(Lib.bytesToInt(fds, i*pollFdSize));
+    		if (file instanceof Pollable)
+    			((Pollable) file).removeWaiter(wakeup);
+    	}
+
+    	if (writeVirtualMemory(fdsAddress, fds) != fds.length)
+    		return -1;
+
+    	return numReady;
+    }
+
+    /**
+     * Fill in the <tt>revents</tt> of each <tt>struct pollfd</tt> in
+     * <i>fds</i>, and return the number of entries with any events. Disk
+     * files are always ready.
+     */
+    private int checkPollFds(byte[] fds, int count) {
+    	int numReady = 0;
+    	for (int i = 0; i < count; i++) {
+    		int fd = Lib.bytesToInt(fds, i*pollFdSize);
+    		int events = Lib.bytesToInt(fds, i*pollFdSize + 4);
+
+    		// errors and hangups are reported whether asked for or not
+    		int revents;
+    		OpenFile file = fileTable.get(fd);
+    		if (file == null)
+    			revents = Pollable.pollNval;
+    		else if (file instanceof Pollable)
+    			revents = ((Pollable) file).readyEvents()
+    				& (events | Pollable.pollErr | Pollable.pollHup);
+    		else
+    			revents = events & (Pollable.pollIn | Pollable.pollOut);
+
+    		Lib.bytesFromInt(fds, i*pollFdSize + 8, revents);
+    		if (revents != 0)
+    			numReady++;
+    	}
+    	return numReady;
     }
 
     // part III Start:
@@ -607,39 +1041,89 @@ public class UserProcess {
 		if (!validAddress(statusAddr))
 			return terminate();
 
-		ExtendedProcess child = childrenProc.get(pid);
+		pidLock.acquire();
+
+		UserProcess child = processTable.get(pid);
 
 		// Can't join on non-child!
-		if (child == null)
+		if (child == null || child.parentProc != this) {
+			pidLock.release();
 			return -1;
+		}
 
-		// Child still running, try to join
-		if (child.c_process != null)
-			child.c_process.joinProcess();
+		// Child still running, wait for it
+		while (!child.exited)
+			childExited.sleep();
 		// We can safely forget about this child after join
-		childrenProc.remove(pid);
+		reap(pid);
 
-		// Child will have transfered return value to us
+		pidLock.release();
 
 		// Child exited due to unhandled exception
-		if (child.rValue == null)
+		if (child.exitStatus == null)
 			return 0;
 
 		// Transfer return value into status ptr
-		writeVirtualMemory(statusAddr, Lib.bytesFromInt(child.rValue));
+		writeVirtualMemory(statusAddr, Lib.bytesFromInt(child.exitStatus));
 
 		// Child exited cleanly
 		return 1;
 	}
 
 	/**
-	 * Cause caller to sleep until this process has exited
+	 * Handle the waitany() system call. Waits until any child has exited,
+	 * and collects it as join() would.
+	 *
+	 * @return the pid of the child, or -1 if this process has no children.
+	 */
+	private int waitAny(int statusAddr) {
+		if (!validAddress(statusAddr))
+			return terminate();
+
+		pidLock.acquire();
+
+		while (exitedChildren.isEmpty() && !children.isEmpty())
+			childExited.sleep();
+
+		if (exitedChildren.isEmpty()) {
+			pidLock.release();
+			return -1;
+		}
+
+		int childPid = exitedChildren.iterator().next();
+		UserProcess child = processTable.get(childPid);
+		reap(childPid);
+
+		pidLock.release();
+
+		if (child.exitStatus != null)
+			writeVirtualMemory(statusAddr, Lib.bytesFromInt(child.exitStatus));
+
+		return childPid;
+	}
+
+	/**
+	 * Handle the getrusage() system call. Copies this process's resource
+	 * counters, up to date as of the call, into a <tt>struct rusage</tt>.
+	 */
+	private int handleGetRusage(int usageAddr) {
+		((UThread) KThread.currentThread()).chargeTime();
+
+		byte[] bytes = usage.toBytes();
+		if (writeVirtualMemory(usageAddr, bytes) != bytes.length)
+			return -1;
+
+		return 0;
+	}
+
+	/**
+	 * Forget about an exited child once its exit status has been collected,
+	 * letting its pid be reused. Called with <tt>pidLock</tt> held.
 	 */
-	private void joinProcess() {
-		joinLock.acquire();
-		while (!isExit)
-			joinWaiting.sleep();
-		joinLock.release();
+	private void reap(int childPid) {
+		children.remove(childPid);
+		exitedChildren.remove(childPid);
+		processTable.remove(childPid);
 	}
 
 	/**
@@ -649,14 +1133,14 @@ public class UserProcess {
 		// Read filename from virtual memory
 		String fileName = readVirtualMemoryString(fileNameAddr, maxLen);
 		// Gather arguments for the new process
-		String arguments[] = new String[argc];
+		String arguments[];
 		UserProcess newChild;
 		
 		// Verify that passed pointers are valid
-		if (!validAddress(fileNameAddr) || !validAddress(argv))
+		if (!validAddress(fileNameAddr) || (argc > 0 && !validAddress(argvAddr)))
 			return terminate();
 
-		if (fileName == null || !fileName.endsWith(".coff"))
+		if (fileName == null || !fileName.endsWith(".coff") || argc < 0 || argc > maxArgPages*pageSize/4)
 			return -1;
 
 		byte argcByteArray[] = new byte[argc * 4];
@@ -665,31 +1149,346 @@ public class UserProcess {
 			// Failed to read the whole array
 			return -1;
 		}
-		// Read each argument string from argcByteArray
-		for (int i = 0; i < argc; i++) {
-			// Get char* pointer for next position in array
-			int tempAddr = Lib.bytesToInt(argcByteArray, i*4);
 
-			if (!validAddress(tempAddr))
-				return -1;
-
-			// Read in the argument string
-			arguments[i] = readVirtualMemoryString(tempAddr, maxLen);
-		}
+		arguments = readArguments(argcByteArray, argc);
+		if (arguments == null)
+			return -1;
 
 		// New process
 		newChild = newUserProcess();
 		newChild.parentProc = this;
+		inheritStandardFiles(newChild);
 
-		// Remember our children
-		childrenProc.put(newChild.pid, new ExtendedProcess(newChild));
+		// Remember our children, before the child gets a chance to exit
+		pidLock.acquire();
+		children.add(newChild.pid);
+		pidLock.release();
 
 		// Run and be free!
-		newChild.execute(fileName, arguments);
+		if (!newChild.execute(fileName, arguments)) {
+			pidLock.acquire();
+			children.remove(newChild.pid);
+			pidLock.release();
+
+			newChild.discard();
+			return -1;
+		}
 
 		return newChild.pid;
 	}
 
+	/**
+	 * Handle the sbrk() system call. Moves the program break, the end of the
+	 * heap, by <i>increment</i> bytes. Heap pages are not allocated until
+	 * they are touched; pages left wholly above a lowered break are freed.
+	 *
+	 * @return the old program break, or -1 if the heap would leave its region.
+	 */
+	private int handleSbrk(int increment) {
+		int oldBreak = heapBreak;
+		long newBreak = (long) heapBreak + increment;
+		if (newBreak < heapStartPage*pageSize || newBreak > (heapStartPage + maxHeapPages)*pageSize)
+			return -1;
+
+		heapBreak = (int) newBreak;
+
+		memoryAccessLock.acquire();
+		int firstFreeVPN = Lib.divRoundUp(heapBreak, pageSize);
+		freePages(firstFreeVPN, heapStartPage + maxHeapPages - firstFreeVPN);
+		memoryAccessLock.release();
+
+		return oldBreak;
+	}
+
+	/**
+	 * Handle the fork() system call. The child gets a copy of this process's
+	 * page table in which every writable page is shared copy-on-write, so
+	 * no memory is copied until one of the processes writes to it.
+	 *
+	 * @return the child's pid in the parent; the child itself returns 0.
+	 */
+	private int handleFork() {
+		Processor processor = Machine.processor();
+
+		UserProcess child = newUserProcess();
+		child.parentProc = this;
+		child.fileTable.shareAll(fileTable);
+
+		memoryAccessLock.acquire();
+
+		if (copyOnWrite == null)
+			copyOnWrite = new boolean[pageTable.length];
+		child.copyOnWrite = new boolean[pageTable.length];
+		child.pageTable = new TranslationEntry[pageTable.length];
+
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry == null || !entry.valid)
+				continue;
+
+			if (!entry.readOnly || copyOnWrite[vpn]) {
+				entry.readOnly = true;
+				copyOnWrite[vpn] = true;
+				child.copyOnWrite[vpn] = true;
+			}
+
+			UserKernel.sharePage(entry.ppn);
+			child.pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, true, entry.readOnly, false, entry.dirty);
+		}
+		forkAddressSpace(child);
+
+		memoryAccessLock.release();
+
+		child.numPages = numPages;
+		child.heapStartPage = heapStartPage;
+		child.heapBreak = heapBreak;
+		child.threadStacksPage = threadStacksPage;
+		child.stackLimitPage = stackLimitPage;
+		child.stackTopPage = stackTopPage;
+		child.initialPC = initialPC;
+		child.initialSP = initialSP;
+		child.argc = argc;
+		child.argv = argv;
+		child.coff = coff;
+		child.executableName = executableName;
+		if (image != null) {
+			UserKernel.executableCache.retain(image);
+			child.image = image;
+		}
+
+		// the child returns 0 from the syscall, just past the syscall instruction
+		child.forkRegisters = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			child.forkRegisters[i] = processor.readRegister(i);
+		child.forkRegisters[Processor.regV0] = 0;
+		child.forkRegisters[Processor.regPC] = child.forkRegisters[Processor.regNextPC];
+		child.forkRegisters[Processor.regNextPC] += 4;
+
+		pidLock.acquire();
+		children.add(child.pid);
+		pidLock.release();
+
+		// only the calling thread is copied, still on its own stack
+		int slot = ((UThread) KThread.currentThread()).stackSlot;
+		child.newThread(slot).setName(executableName).fork();
+
+		return child.pid;
+	}
+
+	/**
+	 * Give a forked child whatever else it needs of this process's address
+	 * space, beyond the pages that are mapped. Called by <tt>fork()</tt>
+	 * with <tt>memoryAccessLock</tt> held, before the child runs.
+	 *
+	 * @param child
+	 * the child, whose page table has just been copied from this process's.
+	 */
+	protected void forkAddressSpace(UserProcess child) {
+	}
+
+	/**
+	 * Create a thread to run in this process, and count it as running.
+	 *
+	 * @param stackSlot
+	 * the thread stack the thread runs on, or -1 for the main stack.
+	 * @return the new thread, ready to be forked.
+	 */
+	private UThread newThread(int stackSlot) {
+		UThread thread = new UThread(this);
+
+		threadLock.acquire();
+		thread.threadID = nextThreadID++;
+		thread.stackSlot = stackSlot;
+		if (stackSlot >= 0)
+			threadStackSlots.set(stackSlot);
+		threads.put(thread.threadID, thread);
+		threadLock.release();
+
+		return thread;
+	}
+
+	/**
+	 * Test whether a virtual page lies in a thread stack that is in use.
+	 */
+	private boolean inThreadStack(int vpn) {
+		if (vpn < threadStacksPage || vpn >= stackLimitPage)
+			return false;
+
+		return threadStackSlots.get((vpn - threadStacksPage) / threadStackPages);
+	}
+
+	/**
+	 * Handle the thread_create() system call. The new thread calls
+	 * <i>func</i> with <i>arg</i>, on a thread stack of its own, and returns
+	 * to <i>returnAddress</i>, which the syscall stub points at code that
+	 * calls <tt>thread_exit()</tt>.
+	 */
+	private int handleThreadCreate(int func, int arg, int returnAddress) {
+		threadLock.acquire();
+		int slot = threadStackSlots.nextClearBit(0);
+		if (slot < maxThreads)
+			threadStackSlots.set(slot);
+		threadLock.release();
+		if (slot >= maxThreads)
+			return -1;
+
+		UThread thread = newThread(slot);
+
+		// by default, everything's 0
+		thread.initialRegisters = new int[Processor.numUserRegisters];
+		thread.initialRegisters[Processor.regPC] = func;
+		// leave the 16 bytes a MIPS caller reserves for the function to
+		// save its argument registers in, which would otherwise be the
+		// bottom of the next thread's stack
+		thread.initialRegisters[Processor.regSP] =
+			(threadStacksPage + (slot+1)*threadStackPages)*pageSize - 16;
+		thread.initialRegisters[Processor.regA0] = arg;
+		thread.initialRegisters[Processor.regRA] = returnAddress;
+
+		thread.setName(executableName + " thread " + thread.threadID).fork();
+
+		return thread.threadID;
+	}
+
+	/**
+	 * Handle the thread_join() system call. Waits for thread <i>tid</i> of
+	 * this process to exit, and stores its exit status at <i>statusAddr</i>
+	 * unless that is 0.
+	 */
+	private int handleThreadJoin(int tid, int statusAddr) {
+		threadLock.acquire();
+
+		if (threads.get(tid) == KThread.currentThread() ||
+				(!threads.containsKey(tid) && !exitedThreads.containsKey(tid))) {
+			threadLock.release();
+			return -1;
+		}
+
+		while (!exitedThreads.containsKey(tid)) {
+			// the process is ending, or another joiner collected the thread
+			if (exiting || !threads.containsKey(tid)) {
+				threadLock.release();
+				if (exiting)
+					KThread.finish();
+				return -1;
+			}
+			threadExited.sleep();
+		}
+		int status = exitedThreads.remove(tid);
+
+		threadLock.release();
+
+		if (statusAddr != 0 &&
+				writeVirtualMemory(statusAddr, Lib.bytesFromInt(status)) != 4)
+			return -1;
+
+		return 0;
+	}
+
+	/**
+	 * Handle the thread_exit() system call. The last thread to exit ends
+	 * the process, with its status as the process's exit status.
+	 */
+	private int handleThreadExit(int status) {
+		UThread thread = (UThread) KThread.currentThread();
+
+		threadLock.acquire();
+		if (threads.size() == 1) {
+			threadLock.release();
+			return exit(status);
+		}
+
+		threads.remove(thread.threadID);
+		exitedThreads.put(thread.threadID, status);
+		threadExited.wakeAll();
+		threadLock.release();
+
+		// give back the pages of the thread's stack
+		if (thread.stackSlot >= 0) {
+			int firstVPN = threadStacksPage + thread.stackSlot*threadStackPages;
+
+			memoryAccessLock.acquire();
+			freePages(firstVPN, threadStackPages);
+			memoryAccessLock.release();
+
+			threadLock.acquire();
+			threadStackSlots.clear(thread.stackSlot);
+			threadLock.release();
+		}
+
+		KThread.finish();
+		Lib.assertNotReached();
+		return 0;
+	}
+
+	/**
+	 * Read the argument strings pointed to by an argv array. The strings are
+	 * normally close together, so the pages holding them are fetched with a
+	 * single read. Only pages that some string starts in are read this way,
+	 * so untouched pages between scattered strings are not allocated; any
+	 * string the bulk read does not cover in full is read on its own.
+	 *
+	 * @param pointers
+	 * the argv array, as read from virtual memory.
+	 * @param argc
+	 * the number of arguments.
+	 * @return the arguments, or <tt>null</tt> if one of them is invalid.
+	 */
+	private String[] readArguments(byte[] pointers, int argc) {
+		String arguments[] = new String[argc];
+		if (argc == 0)
+			return arguments;
+
+		int low = Integer.MAX_VALUE, high = Integer.MIN_VALUE;
+		for (int i = 0; i < argc; i++) {
+			int addr = Lib.bytesToInt(pointers, i*4);
+			if (!validAddress(addr))
+				return null;
+			low = Math.min(low, addr);
+			high = Math.max(high, addr);
+		}
+
+		int firstPage = Processor.pageFromAddress(low);
+		int numPages = Processor.pageFromAddress(high) - firstPage + 1;
+		byte[] strings = null;
+		int bytesRead = 0;
+		if (numPages <= maxArgPages) {
+			boolean[] holdsString = new boolean[numPages];
+			for (int i = 0; i < argc; i++)
+				holdsString[Processor.pageFromAddress(Lib.bytesToInt(pointers, i*4)) - firstPage] = true;
+
+			boolean contiguous = true;
+			for (int i = 0; i < numPages; i++)
+				contiguous &= holdsString[i];
+
+			if (contiguous) {
+				strings = new byte[(firstPage + numPages)*pageSize - low];
+				bytesRead = readVirtualMemory(low, strings);
+			}
+		}
+
+		for (int i = 0; i < argc; i++) {
+			int addr = Lib.bytesToInt(pointers, i*4);
+			if (strings != null) {
+				int start = addr - low;
+				for (int end = start; end < bytesRead && end - start <= maxLen; end++) {
+					if (strings[end] == 0) {
+						arguments[i] = new String(strings, start, end - start);
+						break;
+					}
+				}
+			}
+
+			// not in the bulk read, or runs past it
+			if (arguments[i] == null)
+				arguments[i] = readVirtualMemoryString(addr, maxLen);
+			if (arguments[i] == null)
+				return null;
+		}
+
+		return arguments;
+	}
+
 	/**
 	 * Handle exiting and cleanup of a process
 	 * @param status
@@ -698,37 +1497,57 @@ public class UserProcess {
 	 * Irrelevant - user process never sees this syscall return
 	 */
 	private int exit(Integer status) {
-		joinLock.acquire();
+		// another thread has already ended the process
+		if (exiting)
+			KThread.finish();
+		exiting = true;
 
-		// tell parent that we're exiting
-		if (parentProc != null)	
-			parentProc.childStatus(pid, status);
+		// wake threads waiting in thread_join(), so they can finish
+		threadLock.acquire();
+		threadExited.wakeAll();
+		threadLock.release();
 
-		// Disown all of our running children
-		for (ExtendedProcess child : childrenProc.values())
-			if (child.c_process != null)
-				child.c_process.notOwn();
-		childrenProc = null;
+		// Let asynchronous I/O finish with our memory and files
+		completions.drain();
 
 		// Loop through all open files and close them, releasing references
-		for (int fileDesc = 0; fileDesc < fileTable.length; fileDesc++){
-			if(fileDesc >= 0 && fileDesc < fileTable.length){
-				if(fileTable[fileDesc] != null){
-					handleClose(fileDesc);
-				}
-			}
-		}
+		for (int fd = fileTable.nextOpen(0); fd >= 0; fd = fileTable.nextOpen(fd+1))
+			handleClose(fd);
 	
 		// Free virtual memory
-		((UserKernel)Kernel.kernel).pagesFree(pageTable);
+		unloadSections();
 
-		// Wakeup anyone who is waiting for this to exit
-		isExit = true;
-		joinWaiting.wakeAll();
-		joinLock.release();
+		if (Lib.test(dbgUsage)) {
+			((UThread) KThread.currentThread()).chargeTime();
+			UserKernel.console.flush();
+			usage.print(executableName + " (pid " + pid + ")");
+		}
 
-		// Halt the machine if we were the last process
 		pidLock.acquire();
+
+		// Record our exit status for our parent to collect
+		exitStatus = status;
+		exited = true;
+
+		// tell parent that we're exiting; with no parent, nobody will
+		// collect our status, so give up our pid now
+		if (parentProc != null)
+			parentProc.childExited(pid);
+		else
+			processTable.remove(pid);
+
+		// Disown all of our running children, and forget the exited ones
+		for (int childPid : children) {
+			UserProcess child = processTable.get(childPid);
+			if (!child.exited)
+				child.notOwn();
+			else
+				processTable.remove(childPid);
+		}
+		children.clear();
+		exitedChildren.clear();
+
+		// Halt the machine if we were the last process
 		if (--runningProcesses == 0)
 			Kernel.kernel.terminate();
 		pidLock.release();
@@ -740,16 +1559,27 @@ public class UserProcess {
 	}
 
 	
+	// Release a new process whose program could not be loaded, so it never ran.
+	private void discard() {
+		for (int fd = fileTable.nextOpen(0); fd >= 0; fd = fileTable.nextOpen(fd+1))
+			handleClose(fd);
+
+		pidLock.acquire();
+		runningProcesses--;
+		processTable.remove(pid);
+		pidLock.release();
+	}
+
 	// Called on a parent process by an exiting child to inform them that the child has terminated.
-	protected void childStatus(int childPid, Integer childStatus) {
-		ExtendedProcess cProcess = childrenProc.get(childPid);
-		if (cProcess == null)
+	// The child stays in the process table, with its exit status, until it is collected.
+	// Called with pidLock held.
+	protected void childExited(int childPid) {
+		if (!children.contains(childPid))
 			return;
 
-		// Remove reference to actual child so it can be garbage collected
-		cProcess.c_process = null;
-		// Record child's exit status for posterity
-		cProcess.rValue = childStatus;
+		// Wake up a join() or waitany() waiting for it
+		exitedChildren.add(childPid);
+		childExited.wakeAll();
 	}
 
 	 // Called on a child by an exiting parent to inform them that they are now an orphan. 
@@ -759,14 +1589,14 @@ public class UserProcess {
 
 	
 	// Terminate this process due to unhandled exception
-	private int terminate() {
+	protected int terminate() {
 		exit(null);
 		return -1;
 	}
 
 	
 
-	private static final int
+	protected static final int
     syscallHalt = 0,
 	syscallExit = 1,
 	syscallExec = 2,
@@ -776,7 +1606,20 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallFork = 13,
+	syscallSbrk = 14,
+	syscallPipe = 15,
+	syscallDup = 16,
+	syscallWaitAny = 17,
+	syscallGetRusage = 18,
+	syscallAioRead = 19,
+	syscallAioWrite = 20,
+	syscallAioWait = 21,
+	syscallPoll = 22,
+	syscallThreadCreate = 23,
+	syscallThreadJoin = 24,
+	syscallThreadExit = 25;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -830,6 +1673,62 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int fork();</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>void *sbrk(int increment);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int pipe(int fds[2]);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int dup(int fd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>int waitany(int *status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int getrusage(struct rusage *usage);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int aio_read(int fd, char *buffer, int size, int position);
+	 * </tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int aio_write(int fd, char *buffer, int size, int position);
+	 * </tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>21</td>
+	 * <td><tt>int aio_wait(struct aio_ring *ring, int min);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>22</td>
+	 * <td><tt>int poll(struct pollfd *fds, int count, int timeout);
+	 * </tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>23</td>
+	 * <td><tt>int thread_create(void (*func)(void *), void *arg);
+	 * </tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>24</td>
+	 * <td><tt>int thread_join(int tid, int *status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>25</td>
+	 * <td><tt>void thread_exit(int status);</tt></td>
+	 * </tr>
 	 * </table>
 	 *
 	 * @param syscall
@@ -855,6 +1754,10 @@ public class UserProcess {
 			return exec(a0, a1, a2);
 		case syscallJoin:
 			return join(a0, a1);
+		case syscallWaitAny:
+			return waitAny(a0);
+		case syscallGetRusage:
+			return handleGetRusage(a0);
 
 		case syscallCreate:
 			return handleCreate(a0);
@@ -868,6 +1771,28 @@ public class UserProcess {
 			return handleClose(a0);
 		case syscallUnlink:
 			return handleUnlink(a0);
+		case syscallFork:
+			return handleFork();
+		case syscallSbrk:
+			return handleSbrk(a0);
+		case syscallPipe:
+			return handlePipe(a0);
+		case syscallDup:
+			return handleDup(a0);
+		case syscallAioRead:
+			return handleAsyncIO(a0, a1, a2, a3, false);
+		case syscallAioWrite:
+			return handleAsyncIO(a0, a1, a2, a3, true);
+		case syscallAioWait:
+			return handleAsyncWait(a0, a1);
+		case syscallPoll:
+			return handlePoll(a0, a1, a2);
+		case syscallThreadCreate:
+			return handleThreadCreate(a0, a1, a2);
+		case syscallThreadJoin:
+			return handleThreadJoin(a0, a1);
+		case syscallThreadExit:
+			return handleThreadExit(a0);
 
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -889,6 +1814,7 @@ public class UserProcess {
 
 		switch (cause) {
 		case Processor.exceptionSyscall:
+			usage.countSyscall(processor.readRegister(Processor.regV0));
 			int result = handleSyscall(processor.readRegister(Processor.regV0),
 					processor.readRegister(Processor.regA0),
 					processor.readRegister(Processor.regA1),
@@ -898,6 +1824,36 @@ public class UserProcess {
 			processor.advancePC();
 			break;
 
+		case Processor.exceptionPageFault:
+			// retry the access once the stack or heap page is there
+			memoryAccessLock.acquire();
+			boolean mapped = handlePageFault(Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr)));
+			memoryAccessLock.release();
+			if (mapped) {
+				usage.numPageFaults++;
+				break;
+			}
+
+			Lib.debug(dbgProcess, "Access to unmapped page");
+			terminate();
+			Lib.assertNotReached("Unexpected exception");
+			break;
+
+		case Processor.exceptionReadOnly:
+			// retry the write once this process has its own copy of the page
+			memoryAccessLock.acquire();
+			boolean copied = handleCopyOnWrite(Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr)));
+			memoryAccessLock.release();
+			if (copied) {
+				usage.numPageFaults++;
+				break;
+			}
+
+			Lib.debug(dbgProcess, "Write to read-only page");
+			terminate();
+			Lib.assertNotReached("Unexpected exception");
+			break;
+
 		default:
 			Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
 
@@ -906,59 +1862,100 @@ public class UserProcess {
 		}
 	}
 
-	/**
-	 * Internal class to keep track of children processes and their exit value
-	 */
-	private static class ExtendedProcess {
-		public Integer rValue;
-		public UserProcess c_process;
-
-		ExtendedProcess(UserProcess child) {
-			c_process = child;
-			rValue = null;
-		}
-	}
 	/** Lock to protect static variables */
 	private static Lock pidLock = new Lock();
 
-	/** Process ID */
-	private static int nextPid = 0;
+	/** All processes, by pid. Protected by <tt>pidLock</tt>. */
+	private static ProcessTable processTable = new ProcessTable();
 	protected int pid;
 
 	/** Parent/Child process tree */
 	protected UserProcess parentProc;
-	private HashMap<Integer, ExtendedProcess> childrenProc = new HashMap<Integer, ExtendedProcess> ();
-
-	/** The program being run by this process. */
+	/** The pids of the children not collected yet, whose processes are in <tt>processTable</tt>. */
+	private LinkedHashSet<Integer> children = new LinkedHashSet<Integer>();
+	/** Whether this process has exited. Protected by <tt>pidLock</tt>. */
+	private boolean exited = false;
+	/** The status this process exited with, or <tt>null</tt> after an unhandled exception. */
+	private Integer exitStatus = null;
+	/** Children that have exited but not been joined yet, oldest first. */
+	private LinkedHashSet<Integer> exitedChildren = new LinkedHashSet<Integer>();
+
+	/** The program being run by this process, owned by its cached image. */
 	protected Coff coff;
+	/** The name of the file containing the program. */
+	protected String executableName;
+	/** The shared pages of the program's executable. */
+	private ExecutableCache.Image image;
 
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
+	/** Pages marked read-only only until this process writes to them. */
+	protected boolean[] copyOnWrite;
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
-	/** The number of pages in the program's stack. */
-	protected final int stackPages = 8;
+	/** The largest number of pages the program's stack may grow to. */
+	protected int maxStackPages;
+	/** The largest number of pages the program's heap may grow to. */
+	protected int maxHeapPages;
+	/** The first page of the heap, and the first page past the stack. */
+	protected int heapStartPage, stackTopPage;
+	/** The lowest page the stack may grow down to. */
+	protected int stackLimitPage;
+	/** The program break: the address just past the end of the heap. */
+	protected int heapBreak;
+	/** The largest number of pages the arguments may take up. */
+	protected int maxArgPages;
+	/** The most threads, besides the first, that may run at once. */
+	protected int maxThreads;
+	/** The number of pages in each thread stack. */
+	protected int threadStackPages;
+	/** The first page of the thread stacks, which lie below the stack. */
+	protected int threadStacksPage;
 
 	private int initialPC, initialSP;
 	private int argc, argv;
+	/** The resources this process has used so far. */
+	protected ResourceUsage usage = new ResourceUsage();
+
+	/** Registers a forked process starts with, in place of <tt>initRegisters()</tt> defaults. */
+	private int[] forkRegisters;
 
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
+	private static final char dbgUsage = 'r';
 	private static final int maxLen = 256;
+	/** The size of a <tt>struct pollfd</tt>, and the most that can be polled. */
+	private static final int pollFdSize = 12, maxPollFds = 256;
 
 	/**
 	 * A lock to protect memory accesses.
 	 */
-	private Lock memoryAccessLock = new Lock();
+	protected Lock memoryAccessLock = new Lock();
 
 	/** File table to deal with file system calls. */
-	protected OpenFile[] fileTable = new OpenFile[16];
-
-	/** Join condition */
-	private boolean isExit = false;
-	private Lock joinLock = new Lock();
-	private Condition joinWaiting;
+	protected FileTable fileTable = new FileTable();
+
+	/** Where the results of asynchronous I/O requests are posted. */
+	private CompletionQueue completions = new CompletionQueue(this);
+
+	/** Join condition, signalled whenever one of our children exits */
+	private Condition childExited;
+
+	/** Set once the process has exited, while other threads may linger. */
+	protected boolean exiting = false;
+
+	/** Protects the thread bookkeeping below. */
+	private Lock threadLock = new Lock();
+	/** Signalled whenever one of our threads exits. */
+	private Condition threadExited;
+	/** Running threads, by thread ID. */
+	private HashMap<Integer, UThread> threads = new HashMap<Integer, UThread>();
+	/** Exit statuses of threads that have not been joined, by thread ID. */
+	private HashMap<Integer, Integer> exitedThreads = new HashMap<Integer, Integer>();
+	/** The thread stacks in use. */
+	private BitSet threadStackSlots = new BitSet();
+	private int nextThreadID = 0;
 
 	/** Number of processes */
 	private static int runningProcesses = 0;
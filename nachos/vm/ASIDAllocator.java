@@ -0,0 +1,120 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+
+/**
+ * Hands out address space IDs, so that the TLB can hold the translations of
+ * several processes at once and need not be flushed on a context switch.
+ *
+ * <p>
+ * IDs are handed out in order, and are not handed out again when a process
+ * exits. Once every ID has been handed out, a new generation starts: the TLB
+ * is flushed, and every process is given a new ID the next time it runs. A
+ * process's ID is only its own while the generation it was handed out in is
+ * the current one. ID 0 is never handed out, so it can be used when no
+ * process is running.
+ *
+ * <p>
+ * The allocator does no locking of its own; its methods never block, so they
+ * are atomic with respect to other threads.
+ */
+public class ASIDAllocator {
+    /**
+     * Allocate a new address space ID allocator.
+     *
+     * @param	numASIDs	the number of IDs the TLB can tell apart.
+     */
+    public ASIDAllocator(int numASIDs) {
+	Lib.assertTrue(numASIDs > 1);
+
+	owners = new VMProcess[numASIDs];
+    }
+
+    /**
+     * Return the current generation.
+     *
+     * @return	the current generation.
+     */
+    public int getGeneration() {
+	return generation;
+    }
+
+    /**
+     * Hand out an ID in the current generation, starting a new generation
+     * first if none are left.
+     *
+     * @param	process	the process to give the ID to.
+     * @return	the ID.
+     */
+    public int allocate(VMProcess process) {
+	if (nextASID == owners.length)
+	    newGeneration();
+
+	owners[nextASID] = process;
+	return nextASID++;
+    }
+
+    /**
+     * Return the process an ID of the current generation was handed out to.
+     *
+     * @param	asid	the ID.
+     * @return	the process, or <tt>null</tt> if the ID is not in use.
+     */
+    public VMProcess getOwner(int asid) {
+	if (asid <= 0 || asid >= owners.length)
+	    return null;
+
+	return owners[asid];
+    }
+
+    /**
+     * Stop counting an ID of the current generation as in use. It is not
+     * handed out again until the next generation.
+     *
+     * @param	asid	the ID.
+     */
+    public void release(int asid) {
+	owners[asid] = null;
+    }
+
+    /**
+     * Return the number of generations that have been started.
+     *
+     * @return	the number of generations.
+     */
+    public int getNumGenerations() {
+	return generation + 1;
+    }
+
+    /**
+     * Start a new generation: copy the used and dirty bits of every TLB entry
+     * back to its process's page table, then flush the TLB, since every ID is
+     * about to be handed out again.
+     */
+    private void newGeneration() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    VMProcess owner = getOwner(tlbEntry.asid);
+	    if (tlbEntry.valid && owner != null)
+		owner.syncTLBEntry(tlbEntry);
+
+	    processor.writeTLBEntry(i, new TranslationEntry());
+	}
+
+	Arrays.fill(owners, null);
+	nextASID = 1;
+	generation++;
+    }
+
+    /** The process each ID of the current generation was handed out to. */
+    private VMProcess[] owners;
+    private int nextASID = 1;
+    private int generation = 0;
+}
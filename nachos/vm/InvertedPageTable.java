@@ -0,0 +1,134 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+
+/**
+ * A kernel-wide table with one entry per physical page, recording which
+ * process's virtual page the physical page holds. A hash table chained
+ * through the entries finds the physical page holding a given virtual page.
+ *
+ * <p>
+ * Entries are not always removed when a page is freed, so an entry may be
+ * stale: callers must check it against the process's page table. Each
+ * physical page records a single owner, even if it is shared after
+ * <tt>fork()</tt>; when the owner gives the page up, the next process sharing
+ * it to touch it records itself instead.
+ *
+ * <p>
+ * The table does no locking of its own; its methods never block, so they are
+ * atomic with respect to other threads.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new, empty inverted page table.
+     *
+     * @param	numPhysPages	the number of physical pages.
+     */
+    public InvertedPageTable(int numPhysPages) {
+	owners = new VMProcess[numPhysPages];
+	vpns = new int[numPhysPages];
+	next = new int[numPhysPages];
+
+	int numBuckets = 1;
+	while (numBuckets < numPhysPages)
+	    numBuckets *= 2;
+	buckets = new int[numBuckets];
+	Arrays.fill(buckets, -1);
+    }
+
+    /**
+     * Record that a physical page holds a virtual page of a process,
+     * replacing whatever the table recorded for it before.
+     *
+     * @param	ppn	the physical page.
+     * @param	process	the process.
+     * @param	vpn	the virtual page.
+     */
+    public void insert(int ppn, VMProcess process, int vpn) {
+	remove(ppn);
+
+	owners[ppn] = process;
+	vpns[ppn] = vpn;
+
+	int bucket = hash(process, vpn);
+	next[ppn] = buckets[bucket];
+	buckets[bucket] = ppn;
+    }
+
+    /**
+     * Forget what a physical page holds.
+     *
+     * @param	ppn	the physical page.
+     */
+    public void remove(int ppn) {
+	if (owners[ppn] == null)
+	    return;
+
+	int bucket = hash(owners[ppn], vpns[ppn]);
+	if (buckets[bucket] == ppn) {
+	    buckets[bucket] = next[ppn];
+	}
+	else {
+	    int prev = buckets[bucket];
+	    while (next[prev] != ppn)
+		prev = next[prev];
+	    next[prev] = next[ppn];
+	}
+
+	owners[ppn] = null;
+    }
+
+    /**
+     * Return the process whose page a physical page holds.
+     *
+     * @param	ppn	the physical page.
+     * @return	the process, or <tt>null</tt> if the page is not recorded.
+     */
+    public VMProcess getProcess(int ppn) {
+	return owners[ppn];
+    }
+
+    /**
+     * Return the virtual page a physical page holds.
+     *
+     * @param	ppn	the physical page.
+     * @return	the virtual page, meaningful only if <tt>getProcess()</tt> is
+     *		not <tt>null</tt>.
+     */
+    public int getVPN(int ppn) {
+	return vpns[ppn];
+    }
+
+    /**
+     * Find the physical page holding a virtual page of a process.
+     *
+     * @param	process	the process.
+     * @param	vpn	the virtual page.
+     * @return	the physical page, or -1 if none is recorded.
+     */
+    public int lookup(VMProcess process, int vpn) {
+	for (int ppn = buckets[hash(process, vpn)]; ppn != -1; ppn = next[ppn]) {
+	    if (owners[ppn] == process && vpns[ppn] == vpn)
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    private int hash(VMProcess process, int vpn) {
+	int h = System.identityHashCode(process)*31 + vpn;
+	return (h ^ (h >>> 16)) & (buckets.length-1);
+    }
+
+    private VMProcess[] owners;
+    private int[] vpns;
+    /** The next physical page in the same hash chain, or -1. */
+    private int[] next;
+    /** The first physical page in each hash chain, or -1. */
+    private int[] buckets;
+}
@@ -0,0 +1,443 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Backing store for pages that have been written since they were read or
+ * zero-filled, kept in a file in <tt>ThreadedKernel.fileSystem</tt>. The file
+ * is divided into page-sized slots, and a bitmap records which slots are in
+ * use. Runs of consecutive slots can be allocated and written with a single
+ * file operation, so that the cost of a write is shared by several pages.
+ *
+ * <p>
+ * A slot may hold a page of more than one process after <tt>fork()</tt>, so
+ * each slot has a count of the processes using it. A slot is written once,
+ * when it is allocated, and only read after that.
+ *
+ * <p>
+ * In front of the file is a compressed tier: a page written to a slot is
+ * compressed, and kept in a pool of memory outside the simulated machine, of
+ * <tt>SwapSpace.compressedPoolSize</tt> bytes, divided into chunks. Only
+ * pages that do not fit in the pool, or do not compress, are written to the
+ * file. Reading a page back from the pool costs no file access.
+ *
+ * <p>
+ * Allocating and freeing slots never blocks, so they are atomic with respect
+ * to other threads, and neither does compressing or decompressing pages.
+ * Reads and writes of the file are done one at a time.
+ */
+public class SwapSpace {
+    /**
+     * Allocate a new swap space. The swap file is not created until the
+     * first page is written.
+     */
+    public SwapSpace() {
+	fileName = Config.getString("SwapSpace.fileName", "nachos.swp");
+	maxPages = Config.getInteger("SwapSpace.maxPages", 4096);
+	Lib.assertTrue(maxPages > 0);
+
+	shareCounts = new int[maxPages];
+
+	int poolSize = Config.getInteger("SwapSpace.compressedPoolSize", 16384);
+	Lib.assertTrue(poolSize >= 0);
+
+	numChunks = poolSize / chunkSize;
+	pool = ByteBuffer.allocateDirect(numChunks*chunkSize);
+	firstChunks = new int[maxPages];
+	compressedLengths = new int[maxPages];
+	Arrays.fill(firstChunks, -1);
+    }
+
+    /**
+     * Allocate a run of consecutive slots.
+     *
+     * @param	count	the number of slots.
+     * @return	the first slot of the run, or -1 if no run that long is free.
+     */
+    public int allocate(int count) {
+	int first = inUse.nextClearBit(0);
+	while (first + count <= maxPages) {
+	    int nextUsed = inUse.nextSetBit(first);
+	    if (nextUsed == -1 || nextUsed >= first + count) {
+		inUse.set(first, first + count);
+		for (int slot=first; slot<first+count; slot++)
+		    shareCounts[slot] = 1;
+		return first;
+	    }
+
+	    first = inUse.nextClearBit(nextUsed);
+	}
+
+	return -1;
+    }
+
+    /**
+     * Count another process as using a slot.
+     *
+     * @param	slot	the slot.
+     */
+    public void share(int slot) {
+	Lib.assertTrue(inUse.get(slot));
+
+	shareCounts[slot]++;
+    }
+
+    /**
+     * Stop using a slot, freeing it if no other process uses it.
+     *
+     * @param	slot	the slot.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(inUse.get(slot));
+
+	if (--shareCounts[slot] == 0) {
+	    inUse.clear(slot);
+	    freeCompressed(slot);
+	}
+    }
+
+    /**
+     * Test whether a slot's page is held in the compressed pool.
+     *
+     * @param	slot	the slot.
+     * @return	<tt>true</tt> if reading the slot needs no file access.
+     */
+    public boolean isCompressed(int slot) {
+	return firstChunks[slot] != -1;
+    }
+
+    /**
+     * Write pages to a run of slots.
+     *
+     * @param	firstSlot	the first slot of the run.
+     * @param	data		the contents of the pages, one after another.
+     * @return	<tt>true</tt> if every page was written.
+     */
+    public boolean write(int firstSlot, byte[] data) {
+	Lib.assertTrue(data.length % pageSize == 0);
+
+	int count = data.length / pageSize;
+	for (int i=0; i<count; i++)
+	    compress(firstSlot+i, data, i*pageSize);
+
+	// the pages that did not go into the pool go to the file, in runs
+	boolean written = true;
+	for (int i=0; i<count; ) {
+	    if (isCompressed(firstSlot+i)) {
+		i++;
+		continue;
+	    }
+
+	    int run = 1;
+	    while (i+run < count && !isCompressed(firstSlot+i+run))
+		run++;
+
+	    written &= writeFile(firstSlot+i, data, i*pageSize, run);
+	    i += run;
+	}
+
+	return written;
+    }
+
+    /**
+     * Write a run of pages to the swap file.
+     */
+    private boolean writeFile(int firstSlot, byte[] data, int offset,
+			      int count) {
+	int length = count*pageSize;
+
+	lock.acquire();
+
+	boolean written = false;
+	if (open())
+	    written = file.write(firstSlot*pageSize, data, offset, length)
+		== length;
+
+	numWrites++;
+	numPagesWritten += count;
+
+	lock.release();
+
+	Lib.debug(dbgSwap, "wrote " + count + " pages at slot " + firstSlot);
+	return written;
+    }
+
+    /**
+     * Read the pages in a run of slots.
+     *
+     * @param	firstSlot	the first slot of the run.
+     * @param	data		the buffer to store the pages in, one after
+     *				another.
+     * @return	<tt>true</tt> if every page was read.
+     */
+    public boolean read(int firstSlot, byte[] data) {
+	Lib.assertTrue(data.length % pageSize == 0);
+
+	int count = data.length / pageSize;
+	boolean read = true;
+	for (int i=0; i<count; ) {
+	    if (isCompressed(firstSlot+i)) {
+		read &= decompress(firstSlot+i, data, i*pageSize);
+		i++;
+		continue;
+	    }
+
+	    int run = 1;
+	    while (i+run < count && !isCompressed(firstSlot+i+run))
+		run++;
+
+	    read &= readFile(firstSlot+i, data, i*pageSize, run);
+	    i += run;
+	}
+
+	return read;
+    }
+
+    /**
+     * Read a run of pages from the swap file.
+     */
+    private boolean readFile(int firstSlot, byte[] data, int offset,
+			     int count) {
+	int length = count*pageSize;
+
+	lock.acquire();
+
+	boolean read = false;
+	if (open())
+	    read = file.read(firstSlot*pageSize, data, offset, length) == length;
+
+	numReads++;
+	numPagesRead += count;
+
+	lock.release();
+
+	Lib.debug(dbgSwap, "read " + count + " pages at slot " + firstSlot);
+	return read;
+    }
+
+    /**
+     * Compress a page into the pool, if it compresses and there is a run of
+     * free chunks long enough for it.
+     *
+     * @param	slot	the slot the page is written to.
+     * @param	data	the buffer holding the page.
+     * @param	offset	the offset of the page in the buffer.
+     */
+    private void compress(int slot, byte[] data, int offset) {
+	if (numChunks == 0)
+	    return;
+
+	deflater.reset();
+	deflater.setInput(data, offset, pageSize);
+	deflater.finish();
+	int length = deflater.deflate(compressBuffer);
+
+	// a page that does not shrink by a chunk is not worth keeping
+	if (!deflater.finished() || length > pageSize-chunkSize) {
+	    numIncompressible++;
+	    return;
+	}
+
+	int count = Lib.divRoundUp(length, chunkSize);
+	int first = findChunks(count);
+	if (first == -1) {
+	    numPoolFull++;
+	    return;
+	}
+
+	chunksInUse.set(first, first+count);
+	pool.position(first*chunkSize);
+	pool.put(compressBuffer, 0, length);
+
+	firstChunks[slot] = first;
+	compressedLengths[slot] = length;
+	numCompressed++;
+	compressedBytes += length;
+
+	Lib.debug(dbgSwap, "compressed slot " + slot + " to " + length +
+		  " bytes");
+    }
+
+    /**
+     * Decompress a page held in the pool.
+     *
+     * @param	slot	the slot.
+     * @param	data	the buffer to store the page in.
+     * @param	offset	the offset of the page in the buffer.
+     * @return	<tt>true</tt> if the page was decompressed.
+     */
+    private boolean decompress(int slot, byte[] data, int offset) {
+	int length = compressedLengths[slot];
+	pool.position(firstChunks[slot]*chunkSize);
+	pool.get(compressBuffer, 0, length);
+
+	inflater.reset();
+	inflater.setInput(compressBuffer, 0, length);
+	try {
+	    if (inflater.inflate(data, offset, pageSize) != pageSize)
+		return false;
+	}
+	catch (DataFormatException e) {
+	    return false;
+	}
+
+	numDecompressed++;
+	return true;
+    }
+
+    /**
+     * Find a run of free chunks in the pool.
+     *
+     * @param	count	the number of chunks.
+     * @return	the first chunk of the run, or -1 if none is free.
+     */
+    private int findChunks(int count) {
+	int first = chunksInUse.nextClearBit(0);
+	while (first + count <= numChunks) {
+	    int nextUsed = chunksInUse.nextSetBit(first);
+	    if (nextUsed == -1 || nextUsed >= first + count)
+		return first;
+
+	    first = chunksInUse.nextClearBit(nextUsed);
+	}
+
+	return -1;
+    }
+
+    /**
+     * Give the chunks holding a slot's page back to the pool.
+     */
+    private void freeCompressed(int slot) {
+	if (!isCompressed(slot))
+	    return;
+
+	int count = Lib.divRoundUp(compressedLengths[slot], chunkSize);
+	chunksInUse.clear(firstChunks[slot], firstChunks[slot]+count);
+	firstChunks[slot] = -1;
+    }
+
+    /**
+     * Count a page fault that read a page back from swap.
+     *
+     * @param	compressed	<tt>true</tt> if the page was in the pool.
+     * @param	ticks		the time the fault took.
+     */
+    public void countFault(boolean compressed, long ticks) {
+	if (compressed) {
+	    numCompressedFaults++;
+	    compressedFaultTicks += ticks;
+	}
+	else {
+	    numFileFaults++;
+	    fileFaultTicks += ticks;
+	}
+    }
+
+    /**
+     * Return the name of the swap file.
+     *
+     * @return	the name of the swap file.
+     */
+    public String getFileName() {
+	return fileName;
+    }
+
+    /**
+     * Open the swap file, creating it if this is the first use.
+     */
+    private boolean open() {
+	if (file == null)
+	    file = ThreadedKernel.fileSystem.open(fileName, true);
+
+	return file != null;
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	if (file != null) {
+	    file.close();
+	    ThreadedKernel.fileSystem.remove(fileName);
+	    file = null;
+	}
+    }
+
+    /**
+     * Print the number of swap file reads and writes, how well the
+     * compressed tier did, and how long faults on each tier took.
+     */
+    public void printStats() {
+	System.out.println("Swap: reads " + numReads + " (" + numPagesRead +
+			   " pages), writes " + numWrites + " (" +
+			   numPagesWritten + " pages)");
+
+	String ratio = "-";
+	if (compressedBytes > 0) {
+	    long tenths = (long) numCompressed*pageSize*10 / compressedBytes;
+	    ratio = (tenths/10) + "." + (tenths%10);
+	}
+	System.out.println("Swap: compressed " + numCompressed + " pages (" +
+			   ratio + ":1), decompressed " + numDecompressed +
+			   ", not compressible " + numIncompressible +
+			   ", pool full " + numPoolFull);
+
+	System.out.println("Swap: faults from pool " + numCompressedFaults +
+			   " (" + average(compressedFaultTicks,
+					  numCompressedFaults) +
+			   " ticks each), from file " + numFileFaults + " (" +
+			   average(fileFaultTicks, numFileFaults) +
+			   " ticks each)");
+    }
+
+    private static long average(long total, int count) {
+	return count == 0 ? 0 : total / count;
+    }
+
+    private String fileName;
+    private OpenFile file = null;
+    private Lock lock = new Lock();
+
+    private int maxPages;
+    /** The slots that hold a page of some process. */
+    private BitSet inUse = new BitSet();
+    /** The number of processes using each slot. */
+    private int[] shareCounts;
+
+    private int numReads = 0, numPagesRead = 0;
+    private int numWrites = 0, numPagesWritten = 0;
+
+    /** The compressed pool, outside the Java heap. */
+    private ByteBuffer pool;
+    private int numChunks;
+    private BitSet chunksInUse = new BitSet();
+    /** The first chunk of each slot's compressed page, or -1. */
+    private int[] firstChunks;
+    /** The length of each slot's compressed page, in bytes. */
+    private int[] compressedLengths;
+
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private Inflater inflater = new Inflater(true);
+    private byte[] compressBuffer = new byte[pageSize];
+
+    private int numCompressed = 0, numDecompressed = 0;
+    private long compressedBytes = 0;
+    private int numIncompressible = 0, numPoolFull = 0;
+    private int numCompressedFaults = 0, numFileFaults = 0;
+    private long compressedFaultTicks = 0, fileFaultTicks = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    /** The unit the compressed pool is allocated in. */
+    private static final int chunkSize = 64;
+    private static final char dbgSwap = 'w';
+}
@@ -5,8 +5,55 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Physical memory may be overcommitted: when no page is free, a page of any
+ * process is replaced, chosen by a clock (second-chance) sweep over physical
+ * memory using the inverted page table. A page that has been written is
+ * saved in the swap space first, together with other written pages the
+ * clock would soon reach, so that one write to the swap file serves several
+ * replacements.
+ *
+ * <p>
+ * So that a page fault seldom has to wait for a page to be replaced, a page
+ * daemon thread replaces pages ahead of demand: once fewer than
+ * <tt>VMKernel.freeLowWater</tt> pages are free, it runs the clock until
+ * <tt>VMKernel.freeHighWater</tt> pages are free, and then writes out the
+ * written pages just ahead of the clock hand, so that they can be replaced
+ * without waiting when the hand reaches them.
+ *
+ * <p>
+ * To keep overcommitted memory from thrashing, a working set sampler thread
+ * wakes every <tt>VMKernel.workingSetInterval</tt> ticks, and estimates each
+ * process's working set as the pages it used in the last
+ * <tt>VMKernel.workingSetWindow</tt> of these epochs. While the working sets
+ * of the running processes add up to more memory than there is, the most
+ * recently started ones are suspended; they are resumed, longest suspended
+ * first, once their working sets fit again.
+ *
+ * <p>
+ * Pages that start out zero-filled are all mapped to a single zero page,
+ * read-only and copy-on-write, until they are written. If
+ * <tt>VMKernel.dedupInterval</tt> is set, a scanner thread also merges
+ * read-only pages of the program image that hold the same contents at the
+ * same address in different processes, such as the code of several copies
+ * of a program.
+ *
+ * <p>
+ * Processes map large pages of <tt>VMKernel.largePageSize</tt> pages where
+ * they can; by default a quarter of physical memory rounded down to a power
+ * of two, at most 64, and none with fewer than 16 physical pages. A large
+ * page is never replaced as a whole: the clock gives it a second chance at
+ * its first page, and once it finds it unused, splits it back into ordinary
+ * pages and goes on as usual.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,6 +68,83 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	invertedPageTable =
+	    new InvertedPageTable(Machine.processor().getNumPhysPages());
+	clockLock = new Lock();
+	processLock = new Lock();
+
+	// the kernel keeps its own reference, so the page is never written
+	if (Config.getBoolean("VMKernel.shareZeroPage", true)) {
+	    try {
+		zeroPage = UserKernel.getPages(1)[0].ppn;
+	    }
+	    catch (NotEnoughPagesException e) {
+		Lib.assertNotReached("no memory for the zero page");
+	    }
+
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, zeroPage*pageSize, (zeroPage+1)*pageSize,
+			(byte) 0);
+	}
+
+	asids = new ASIDAllocator(Config.getInteger("VMKernel.numASIDs", 64));
+	swapSpace = new SwapSpace();
+	clusterSize = Config.getInteger("VMKernel.clusterSize", 8);
+	Lib.assertTrue(clusterSize > 0);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	lowWater = Config.getInteger("VMKernel.freeLowWater", numPhysPages/16);
+	highWater = Config.getInteger("VMKernel.freeHighWater",
+				      Math.max(lowWater, numPhysPages/8));
+	cleanAhead = Config.getInteger("VMKernel.cleanAhead", 2*clusterSize);
+	Lib.assertTrue(lowWater >= 0 && highWater >= lowWater &&
+		       highWater <= numPhysPages && cleanAhead >= 0);
+
+	// a low watermark of 0 leaves all replacement to page faults
+	if (lowWater > 0) {
+	    daemonWakeup = new Semaphore(0);
+	    new KThread(new Runnable() {
+		    public void run() { pageDaemon(); }
+		}).setName("page daemon").fork();
+	}
+
+	workingSetInterval = Config.getInteger("VMKernel.workingSetInterval",
+					       5000);
+	workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 4);
+	Lib.assertTrue(workingSetInterval >= 0 && workingSetWindow > 0);
+
+	// an interval of 0 turns off sampling and load control
+	if (workingSetInterval > 0) {
+	    new KThread(new Runnable() {
+		    public void run() { sampleWorkingSets(); }
+		}).setName("working set sampler").fork();
+	}
+
+	// up to 64 pages, but no more than a quarter of memory, since large
+	// pages may only be mapped while half of memory stays free; below 4
+	// pages, a large page saves too few TLB misses to be worth tying up an
+	// aligned run of frames
+	int defaultLargePageSize = 64;
+	while (defaultLargePageSize > 1 &&
+	       defaultLargePageSize > Machine.processor().getNumPhysPages()/4)
+	    defaultLargePageSize /= 2;
+	if (defaultLargePageSize < 4)
+	    defaultLargePageSize = 0;
+
+	largePageSize = Config.getInteger("VMKernel.largePageSize",
+					  defaultLargePageSize);
+	Lib.assertTrue(largePageSize >= 0 &&
+		       (largePageSize & (largePageSize-1)) == 0);
+
+	dedupInterval = Config.getInteger("VMKernel.dedupInterval", 0);
+	Lib.assertTrue(dedupInterval >= 0);
+
+	if (dedupInterval > 0) {
+	    new KThread(new Runnable() {
+		    public void run() { scanForDuplicates(); }
+		}).setName("dedup scanner").fork();
+	}
     }
 
     /**
@@ -41,11 +165,496 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (Lib.test(dbgVM)) {
+	    System.out.println("VM: pages evicted " + numEvictions +
+			       " (" + numDaemonEvictions + " by page daemon)" +
+			       ", ASID generations " + asids.getNumGenerations());
+	    System.out.println("VM: pages cleaned by page daemon " +
+			       numDaemonCleaned + ", mapped pages written back " +
+			       numWriteBacks);
+	    System.out.println("VM: working set epochs " + epoch +
+			       ", processes suspended " + numSuspensions);
+	    System.out.println("VM: large pages mapped " + numLargePages +
+			       ", split " + numLargePagesSplit);
+	    System.out.println("VM: zero page mappings " + numZeroMappings +
+			       ", pages merged " + numMerged +
+			       ", most pages in use " + maxPagesInUse);
+	    System.out.println("VM: pages read ahead " + numPrefetched +
+			       ", used " + numPrefetchHits);
+	    swapSpace.printStats();
+	}
+
+	swapSpace.close();
+
 	super.terminate();
     }
 
+    /**
+     * Free a physical page by replacing a page of some process. The clock
+     * hand sweeps over physical memory, giving each recently used page a
+     * second chance by clearing its used bit, and replaces the first page
+     * that has not been used since the last sweep and that its process can
+     * give up. A dirty page is written to the swap space before it is
+     * replaced, or, if it is a page of a mapped file, back to the file. A page shared with other processes is only freed once they
+     * have all given it up, so the caller may have to try again.
+     *
+     * @return	<tt>true</tt> if a page was given up, or <tt>false</tt> if
+     *		every page is in use and none can be given up.
+     */
+    public static boolean evictPage() {
+	int numPhysPages = Machine.processor().getNumPhysPages();
+
+	clockLock.acquire();
+
+	boolean freed = false;
+
+	// two sweeps: the first may only clear used bits
+	for (int i=0; i<2*numPhysPages && !freed; i++) {
+	    int ppn = clockHand;
+	    clockHand = (clockHand+1) % numPhysPages;
+
+	    VMProcess process = invertedPageTable.getProcess(ppn);
+	    if (process == null)
+		continue;
+
+	    int vpn = invertedPageTable.getVPN(ppn);
+	    TranslationEntry entry = process.getResidentPage(vpn, ppn);
+	    if (entry == null) {
+		// the page was freed without telling us
+		invertedPageTable.remove(ppn);
+		continue;
+	    }
+
+	    if (entry.numPages > 1 && !process.ageLargePage(vpn))
+		continue;
+
+	    if (entry.used) {
+		process.clearUsed(vpn);
+		continue;
+	    }
+
+	    if (!process.isEvictable(vpn))
+		continue;
+
+	    if (entry.dirty) {
+		if (!process.isSwappable(vpn)) {
+		    if (!process.writeBack(vpn, ppn))
+			continue;
+		    numWriteBacks++;
+		}
+		else if (swapOut(process, vpn, ppn) == 0)
+		    continue;
+
+		// the write may have slept, and the process may have exited
+		// and its frame been handed to another process meanwhile
+		if (invertedPageTable.getProcess(ppn) != process ||
+		    process.getResidentPage(vpn, ppn) != entry)
+		    continue;
+	    }
+
+	    if (process.evict(vpn)) {
+		numEvictions++;
+		freed = true;
+	    }
+	}
+
+	clockLock.release();
+
+	return freed;
+    }
+
+    /**
+     * Wake the page daemon if fewer than <tt>VMKernel.freeLowWater</tt>
+     * pages are free. Called after physical pages are allocated.
+     */
+    public static void checkFreePages() {
+	int numFree = UserKernel.numFreePages();
+	maxPagesInUse = Math.max(maxPagesInUse,
+				 Machine.processor().getNumPhysPages()-numFree);
+
+	if (daemonWakeup != null && !daemonAwake && numFree < lowWater) {
+	    daemonAwake = true;
+	    daemonWakeup.V();
+	}
+    }
+
+    /**
+     * The page daemon: each time it is woken, replace pages until enough are
+     * free, then clean the pages ahead of the clock hand.
+     */
+    private static void pageDaemon() {
+	while (true) {
+	    daemonWakeup.P();
+	    daemonAwake = false;
+
+	    Lib.debug(dbgVM, "page daemon: " + UserKernel.numFreePages() +
+		      " pages free");
+
+	    while (UserKernel.numFreePages() < highWater && evictPage())
+		numDaemonEvictions++;
+
+	    cleanPages();
+	}
+    }
+
+    /**
+     * Write the dirty pages among the next <tt>VMKernel.cleanAhead</tt>
+     * pages the clock will reach to the swap space, if they have not been
+     * used since the clock last passed them and are not part of a large
+     * page, whose dirty bits the TLB keeps for all of its pages at once. They
+     * stay resident, but can be replaced without waiting for a write once
+     * the clock reaches them.
+     */
+    private static void cleanPages() {
+	int numPhysPages = Machine.processor().getNumPhysPages();
+
+	clockLock.acquire();
+
+	int ppn = clockHand;
+	for (int i=0; i<cleanAhead; i++, ppn=(ppn+1)%numPhysPages) {
+	    VMProcess process = invertedPageTable.getProcess(ppn);
+	    if (process == null)
+		continue;
+
+	    int vpn = invertedPageTable.getVPN(ppn);
+	    TranslationEntry entry = process.getResidentPage(vpn, ppn);
+	    if (entry != null && entry.dirty && !entry.used &&
+		entry.numPages == 1 && process.isSwappable(vpn))
+		numDaemonCleaned += swapOut(process, vpn, ppn);
+	}
+
+	clockLock.release();
+    }
+
+    /**
+     * The working set sampler: at the end of each epoch, sample the working
+     * set of every running process, then suspend or resume processes so that
+     * the working sets of the running ones fit in memory.
+     */
+    private static void sampleWorkingSets() {
+	Processor processor = Machine.processor();
+
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(workingSetInterval);
+	    epoch++;
+
+	    // the TLB has the latest used bits; move them to the page tables
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		if (tlbEntry.valid) {
+		    VMProcess.syncAnyTLBEntry(tlbEntry);
+		    tlbEntry.used = false;
+		    processor.writeTLBEntry(i, tlbEntry);
+		}
+	    }
+
+	    processLock.acquire();
+
+	    // a suspended process keeps its working set from before
+	    int demand = 0;
+	    for (VMProcess process : processes) {
+		if (!process.isSuspended())
+		    demand += process.sampleWorkingSet(epoch, workingSetWindow);
+	    }
+
+	    controlLoad(demand);
+
+	    processLock.release();
+	}
+    }
+
+    /**
+     * Suspend the most recently started processes while the working sets of
+     * the running processes do not fit in memory, leaving at least one
+     * running; otherwise resume suspended processes, longest suspended
+     * first, as long as their working sets fit. A process whose working set
+     * is larger than memory is resumed once no running process is using
+     * any pages, so that it runs alone. Called with the process lock held.
+     *
+     * @param	demand	the total working set of the running processes.
+     */
+    private static void controlLoad(int demand) {
+	int available = Machine.processor().getNumPhysPages() - highWater;
+	int numRunning = processes.size() - suspended.size();
+
+	Iterator<VMProcess> i = processes.descendingIterator();
+	while (demand > available && numRunning > 1 && i.hasNext()) {
+	    VMProcess process = i.next();
+	    if (process.isSuspended())
+		continue;
+
+	    process.suspend();
+	    suspended.add(process);
+	    numSuspensions++;
+	    numRunning--;
+	    demand -= process.getWorkingSetSize();
+	}
+
+	while (!suspended.isEmpty() &&
+	       (numRunning == 0 || demand == 0 ||
+		demand + suspended.getFirst().getWorkingSetSize() <= available)) {
+	    VMProcess process = suspended.removeFirst();
+	    process.resume();
+	    numRunning++;
+	    demand += process.getWorkingSetSize();
+
+	    // a resumed process counts as the most recently started
+	    processes.remove(process);
+	    processes.add(process);
+	}
+    }
+
+    /**
+     * The dedup scanner: every <tt>VMKernel.dedupInterval</tt> ticks, merge
+     * the pages that can be merged.
+     */
+    private static void scanForDuplicates() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(dedupInterval);
+	    mergeDuplicates();
+	}
+    }
+
+    /**
+     * Hash every mergeable page in the inverted page table by its contents
+     * and virtual page, and map each page whose contents match an earlier
+     * one to the earlier one's physical page. Merged pages stay at the same
+     * virtual page, so that when the owner of a merged physical page gives
+     * it up, <tt>releasePage()</tt> can find another process to own it.
+     */
+    private static void mergeDuplicates() {
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	byte[] memory = Machine.processor().getMemory();
+
+	HashMap<Long, Integer> pages = new HashMap<Long, Integer>();
+
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    VMProcess process = invertedPageTable.getProcess(ppn);
+	    if (process == null)
+		continue;
+
+	    int vpn = invertedPageTable.getVPN(ppn);
+	    if (!process.isMergeable(vpn, ppn))
+		continue;
+
+	    int hash = 0;
+	    for (int i=ppn*pageSize; i<(ppn+1)*pageSize; i++)
+		hash = hash*31 + memory[i];
+
+	    long key = ((long) hash << 32) | vpn;
+	    Integer other = pages.get(key);
+	    if (other == null) {
+		pages.put(key, ppn);
+		continue;
+	    }
+
+	    boolean same = true;
+	    for (int i=0; i<pageSize && same; i++)
+		same = memory[other*pageSize+i] == memory[ppn*pageSize+i];
+
+	    if (same) {
+		process.mergePage(vpn, other);
+		numMerged++;
+	    }
+	}
+    }
+
+    /**
+     * Count a process as having pages that may be recorded in the inverted
+     * page table.
+     *
+     * @param	process	the process.
+     */
+    public static void addProcess(VMProcess process) {
+	processLock.acquire();
+	processes.add(process);
+	processLock.release();
+    }
+
+    /**
+     * Stop counting a process added with <tt>addProcess()</tt>.
+     *
+     * @param	process	the process.
+     */
+    public static void removeProcess(VMProcess process) {
+	processLock.acquire();
+	processes.remove(process);
+	suspended.remove(process);
+	processLock.release();
+    }
+
+    /**
+     * Record that a process no longer maps a physical page. If another
+     * process still shares the page, it is recorded as the page's owner
+     * instead, so that the page can still be replaced.
+     *
+     * @param	process	the process giving up the page.
+     * @param	ppn	the physical page.
+     */
+    public static void releasePage(VMProcess process, int ppn) {
+	if (invertedPageTable.getProcess(ppn) != process)
+	    return;
+
+	int vpn = invertedPageTable.getVPN(ppn);
+	invertedPageTable.remove(ppn);
+
+	processLock.acquire();
+
+	// pages are only shared by fork(), which keeps them at the same address
+	for (VMProcess other : processes) {
+	    if (other != process && other.getResidentPage(vpn, ppn) != null) {
+		invertedPageTable.insert(ppn, other, vpn);
+		break;
+	    }
+	}
+
+	processLock.release();
+    }
+
+    /**
+     * Write a dirty page to the swap space, so that it becomes clean and can
+     * be given up. Up to <tt>VMKernel.clusterSize</tt> other dirty pages that
+     * have not been used since the clock last passed them and are not part
+     * of a large page, the first ones after it in physical memory, are
+     * written in the same run of swap slots, and become clean too. Called
+     * with the clock lock held.
+     *
+     * @param	process	the process whose page to write.
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page holding it.
+     * @return	the number of pages written, or 1 if the page was already
+     *		clean; 0 if the page is no longer resident or could not be
+     *		written.
+     */
+    private static int swapOut(VMProcess process, int vpn, int ppn) {
+	int numPhysPages = Machine.processor().getNumPhysPages();
+
+	TranslationEntry victim = process.getResidentPage(vpn, ppn);
+	if (victim == null || !victim.dirty)
+	    return victim != null ? 1 : 0;
+
+	ArrayList<Integer> cluster = new ArrayList<Integer>();
+	cluster.add(ppn);
+
+	for (int p=(ppn+1)%numPhysPages; p!=ppn && cluster.size()<clusterSize;
+	     p=(p+1)%numPhysPages) {
+	    VMProcess owner = invertedPageTable.getProcess(p);
+	    if (owner == null)
+		continue;
+
+	    int ownerVPN = invertedPageTable.getVPN(p);
+	    TranslationEntry entry = owner.getResidentPage(ownerVPN, p);
+	    if (entry != null && entry.dirty && !entry.used &&
+		entry.numPages == 1 && owner.isSwappable(ownerVPN))
+		cluster.add(p);
+	}
+
+	int firstSlot = swapSpace.allocate(cluster.size());
+	if (firstSlot == -1) {
+	    // no run is long enough; the victim alone may still fit
+	    while (cluster.size() > 1)
+		cluster.remove(cluster.size()-1);
+
+	    firstSlot = swapSpace.allocate(1);
+	    if (firstSlot == -1)
+		return 0;
+	}
+
+	int count = cluster.size();
+	VMProcess[] owners = new VMProcess[count];
+	int[] vpns = new int[count];
+	byte[] data = new byte[count*pageSize];
+	for (int i=0; i<count; i++) {
+	    owners[i] = invertedPageTable.getProcess(cluster.get(i));
+	    vpns[i] = invertedPageTable.getVPN(cluster.get(i));
+	    owners[i].pageOut(vpns[i], firstSlot+i, data, i*pageSize);
+	}
+
+	if (swapSpace.write(firstSlot, data))
+	    return count;
+
+	// the pages are dirty again, since their slots hold nothing
+	for (int i=0; i<count; i++)
+	    owners[i].pageOutFailed(vpns[i], firstSlot+i);
+
+	return 0;
+    }
+
+    /** Globally accessible map from physical pages to their virtual pages. */
+    public static InvertedPageTable invertedPageTable;
+    /** Globally accessible allocator of address space IDs. */
+    public static ASIDAllocator asids;
+    /** Globally accessible backing store for dirty pages. */
+    public static SwapSpace swapSpace;
+    /**
+     * The physical page that pages starting out zero-filled are mapped to,
+     * or -1 if each is given a page of its own.
+     */
+    public static int zeroPage = -1;
+
+    /** The processes whose pages may be in the inverted page table. */
+    private static LinkedList<VMProcess> processes = new LinkedList<VMProcess>();
+    /** The suspended processes, longest suspended first. */
+    private static LinkedList<VMProcess> suspended = new LinkedList<VMProcess>();
+    /**
+     * Guards <tt>processes</tt> and <tt>suspended</tt>, which threads add
+     * processes to and remove them from while others walk through them.
+     */
+    private static Lock processLock;
+
+    private static Lock clockLock;
+    /** The next physical page the clock will look at. */
+    private static int clockHand = 0;
+    private static int numEvictions = 0;
+    /** The number of dirty mapped pages written to their files to be replaced. */
+    private static int numWriteBacks = 0;
+    /** The most pages written to the swap space at once. */
+    private static int clusterSize;
+
+    /** Fewer free pages than this wake the page daemon. */
+    private static int lowWater;
+    /** The number of free pages the page daemon stops at. */
+    private static int highWater;
+    /** The number of pages ahead of the clock hand the daemon cleans. */
+    private static int cleanAhead;
+    private static Semaphore daemonWakeup = null;
+    private static boolean daemonAwake = false;
+    private static int numDaemonEvictions = 0;
+    private static int numDaemonCleaned = 0;
+
+    /** The length of a working set sampling epoch, in ticks. */
+    private static int workingSetInterval;
+    /** The number of epochs a working set covers. */
+    private static int workingSetWindow;
+    /** The number of epochs that have ended. */
+    private static int epoch = 0;
+    private static int numSuspensions = 0;
+
+    /**
+     * The number of pages in a large page, a power of two; 0 or 1 for no
+     * large pages.
+     */
+    public static int largePageSize;
+    /** The number of large pages mapped. */
+    static int numLargePages = 0;
+    /** The number of large pages split into ordinary pages. */
+    static int numLargePagesSplit = 0;
+
+    /** The number of pages mapped to the zero page. */
+    static int numZeroMappings = 0;
+    /** The number of ticks between dedup scans, or 0 for none. */
+    private static int dedupInterval;
+    private static int numMerged = 0;
+    private static int maxPagesInUse = 0;
+
+    /** The number of pages read ahead of a page fault. */
+    static int numPrefetched = 0;
+    /** The number of pages read ahead that were used before being replaced. */
+    static int numPrefetchHits = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
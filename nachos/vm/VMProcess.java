@@ -3,10 +3,46 @@ package nachos.vm;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
+import nachos.userprog.UserKernel.NotEnoughPagesException;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No page is read or allocated until the program touches it: program pages
+ * are read from the executable, mapped file pages from the file, and the
+ * others are zero-filled. Every resident page is recorded in
+ * <tt>VMKernel.invertedPageTable</tt>, so the kernel can replace it to make
+ * room for another process's page. A clean page can always be given up,
+ * since it can be read or zero-filled again; a dirty page is first saved in
+ * <tt>VMKernel.swapSpace</tt>, and read back from there, or, if it is a
+ * page of a mapped file, written back to the file.
+ *
+ * <p>
+ * When faults come in order of address, as when a program scans through an
+ * array, the pages after the faulting page are read with it in the same
+ * read, from the executable or the swap space, into free physical pages.
+ * The number of pages read ahead grows while faults stay sequential, and
+ * shrinks when pages read ahead are given up without having been used.
+ *
+ * <p>
+ * <tt>VMKernel</tt> samples the pages each process uses to estimate its
+ * working set, and may suspend the process when memory is overcommitted; its
+ * threads then wait in the exception handler until it is resumed.
+ *
+ * <p>
+ * An aligned run of <tt>VMKernel.largePageSize</tt> pages that lies wholly
+ * in one section of the program, such as its code, or wholly in the heap
+ * below the break, is faulted in all at once into an aligned run of physical pages,
+ * and loaded into the TLB as a single large page. The clock gives a large
+ * page its second chance as a whole, and splits it back into ordinary pages
+ * once it finds it unused; large pages are also split when the process
+ * forks, or when part of one is freed.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -14,6 +50,14 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	maxMapPages = Config.getInteger("VMProcess.maxMapPages", 256);
+
+	String replacement = Config.getString("VMProcess.tlbReplacement", "nru");
+	Lib.assertTrue(replacement.equals("nru") || replacement.equals("random"));
+	nruReplacement = replacement.equals("nru");
+
+	maxPrefetch = Config.getInteger("VMProcess.maxPrefetch", 8);
     }
 
     /**
@@ -22,6 +66,9 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	// the entries stay in the TLB, tagged with this process's ID
+	syncTLB();
     }
 
     /**
@@ -29,7 +76,35 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+
+	// an exiting process's other threads must not reach its pages
+	if (exiting) {
+	    processor.setASID(0);
+	    return;
+	}
+
+	if (!hasASID()) {
+	    asid = VMKernel.asids.allocate(this);
+	    asidGeneration = VMKernel.asids.getGeneration();
+	}
+
+	processor.setASID(asid);
+    }
+
+    /**
+     * Test whether this process's address space ID is still its own, so the
+     * TLB may hold entries tagged with it.
+     */
+    private boolean hasASID() {
+	return asid != 0 && asidGeneration == VMKernel.asids.getGeneration();
+    }
+
+    /**
+     * Test whether a TLB entry is one of this process's.
+     */
+    private boolean isOwnTLBEntry(TranslationEntry tlbEntry) {
+	return tlbEntry.valid && tlbEntry.asid == asid && hasASID();
     }
 
     /**
@@ -39,15 +114,1309 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	// every page starts out not present, and is faulted in when touched
+	pageTable = new TranslationEntry[numPages];
+	imagePages = numPages;
+	VMKernel.addProcess(this);
+
+	swapSlots = new int[imagePages];
+	Arrays.fill(swapSlots, -1);
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	if (pageTable != null) {
+	    for (TranslationEntry entry : pageTable) {
+		if (entry != null && entry.valid)
+		    VMKernel.releasePage(this, entry.ppn);
+	    }
+	}
+	VMKernel.removeProcess(this);
+	resume();
+
+	if (Lib.test(dbgVM) && numSamples > 0) {
+	    System.out.println("VM: " + executableName + " (pid " + pid +
+			       "): working set average " +
+			       (workingSetTotal / numSamples) + ", largest " +
+			       maxWorkingSet + " pages, suspended " +
+			       numSuspensions + " times");
+	}
+
+	if (hasASID()) {
+	    flushTLB();
+	    VMKernel.asids.release(asid);
+	}
+	asid = 0;
+
+	prefetched.clear();
+
+	if (swapSlots != null) {
+	    for (int slot : swapSlots) {
+		if (slot != -1)
+		    VMKernel.swapSpace.free(slot);
+	    }
+	    swapSlots = null;
+	}
+
 	super.unloadSections();
-    }    
+    }
+
+    /**
+     * Free the pages of a range of virtual pages that have left the address
+     * space, and any copies of them in the swap space.
+     */
+    protected void freePages(int firstVPN, int count) {
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++) {
+	    if (isLargePage(vpn))
+		splitLargePage(vpn & ~(pageTable[vpn].numPages-1));
+	}
+
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++) {
+	    if (pageTable[vpn] != null && pageTable[vpn].valid)
+		VMKernel.releasePage(this, pageTable[vpn].ppn);
+
+	    if (swapSlots[vpn] != -1) {
+		VMKernel.swapSpace.free(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+	prefetched.clear(firstVPN, firstVPN+count);
+
+	super.freePages(firstVPN, count);
+    }
+
+    /**
+     * Give a forked child this process's pages in the swap space, which it
+     * shares until one of the processes writes to them.
+     *
+     * <p>
+     * The child does not share the mappings, so its copies of mapped pages
+     * can only be kept in the swap space. They are marked dirty, so that they
+     * are written there before they are given up. A mapped page the clock
+     * replaced after <tt>faultInMappings()</tt> read it is read again, into a
+     * page of the child's own.
+     */
+    protected void forkAddressSpace(UserProcess process) {
+	VMProcess child = (VMProcess) process;
+
+	// the pages are now shared page by page
+	splitLargePages();
+
+	VMKernel.addProcess(child);
+
+	child.imagePages = imagePages;
+	child.swapSlots = Arrays.copyOf(swapSlots, child.pageTable.length);
+	for (int vpn=0; vpn<child.swapSlots.length; vpn++) {
+	    if (vpn < swapSlots.length) {
+		if (swapSlots[vpn] != -1)
+		    VMKernel.swapSpace.share(swapSlots[vpn]);
+	    }
+	    else {
+		child.swapSlots[vpn] = -1;
+	    }
+	}
+
+	for (Mapping map : mappings.values()) {
+	    for (int vpn=map.firstVPN; vpn<map.firstVPN+map.numPages; vpn++) {
+		if (child.pageTable[vpn] == null && child.pageInMapping(vpn, map))
+		    VMKernel.invertedPageTable.insert(child.pageTable[vpn].ppn,
+						      child, vpn);
+
+		if (child.pageTable[vpn] != null)
+		    child.pageTable[vpn].dirty = true;
+	    }
+	}
+    }
+
+    /**
+     * Allocate physical pages for this process alone, replacing pages of
+     * any process if none are free, and waking the page daemon if few are
+     * left.
+     */
+    protected TranslationEntry[] getPrivatePages(int count)
+	throws NotEnoughPagesException {
+	while (true) {
+	    try {
+		TranslationEntry[] entries = super.getPrivatePages(count);
+		VMKernel.checkFreePages();
+		return entries;
+	    }
+	    catch (NotEnoughPagesException e) {
+		if (!VMKernel.evictPage())
+		    throw e;
+	    }
+	}
+    }
+
+    /**
+     * Return the page table entry for a virtual page, if it is resident in a
+     * particular physical page.
+     *
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page.
+     * @return	the entry, or <tt>null</tt> if the virtual page is not in
+     *		that physical page.
+     */
+    TranslationEntry getResidentPage(int vpn, int ppn) {
+	if (pageTable == null || vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry == null || !entry.valid || entry.ppn != ppn)
+	    return null;
+
+	return entry;
+    }
+
+    /**
+     * Clear the used bit of a resident page, in the TLB too if this process
+     * is running.
+     *
+     * @param	vpn	the virtual page.
+     */
+    void clearUsed(int vpn) {
+	pageTable[vpn].used = false;
+	clearTLBBits(vpn, true, false);
+    }
+
+    /**
+     * Test whether a resident page may be replaced. A dirty page must be one
+     * the swap space can hold, or a page of a mapped file, which is written
+     * back to the file instead.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page may be replaced.
+     */
+    boolean isEvictable(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (entry == null || !entry.valid)
+	    return false;
+
+	return !entry.dirty || isSwappable(vpn) || findMapping(vpn) != null;
+    }
+
+    /**
+     * Test whether a virtual page is saved in the swap space when it is
+     * replaced, rather than written back to a mapped file. Past the program
+     * image, these are the copies of its parent's mapped pages that a forked
+     * child was given.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page belongs in the swap space.
+     */
+    boolean isSwappable(int vpn) {
+	if (swapSlots == null || vpn >= swapSlots.length)
+	    return false;
+
+	return vpn < imagePages || findMapping(vpn) == null;
+    }
+
+    /**
+     * Copy a resident page into a buffer to be written to a swap slot, and
+     * mark it clean. The page stays resident, and the slot is used to read
+     * it back once it is given up, unless the page is written again first.
+     *
+     * @param	vpn	the virtual page.
+     * @param	slot	the swap slot the page will be written to.
+     * @param	buf	the buffer to copy the page to.
+     * @param	offset	the offset in the buffer of the page.
+     */
+    void pageOut(int vpn, int slot, byte[] buf, int offset) {
+	TranslationEntry entry = pageTable[vpn];
+
+	byte[] memory = Machine.processor().getMemory();
+	System.arraycopy(memory, entry.ppn*pageSize, buf, offset, pageSize);
+
+	if (swapSlots[vpn] != -1)
+	    VMKernel.swapSpace.free(swapSlots[vpn]);
+	swapSlots[vpn] = slot;
+
+	entry.dirty = false;
+	clearTLBBits(vpn, false, true);
+    }
+
+    /**
+     * Forget a swap slot whose write failed, and mark the page dirty again.
+     *
+     * @param	vpn	the virtual page passed to <tt>pageOut()</tt>.
+     * @param	slot	the swap slot passed to <tt>pageOut()</tt>.
+     */
+    void pageOutFailed(int vpn, int slot) {
+	if (swapSlots == null || swapSlots[vpn] != slot)
+	    return;
+
+	VMKernel.swapSpace.free(slot);
+	swapSlots[vpn] = -1;
+
+	if (pageTable[vpn] != null)
+	    pageTable[vpn].dirty = true;
+    }
+
+    /**
+     * Write a dirty page of a mapped file back to the file, so that it
+     * becomes clean and can be given up; it is read from the file again the
+     * next time it is touched. The page is copied and marked clean before
+     * the write, which may sleep, so that a write to it meanwhile makes it
+     * dirty again.
+     *
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page holding it.
+     * @return	<tt>true</tt> if the page is clean.
+     */
+    boolean writeBack(int vpn, int ppn) {
+	TranslationEntry entry = getResidentPage(vpn, ppn);
+	Mapping map = findMapping(vpn);
+	if (entry == null || map == null)
+	    return false;
+	if (!entry.dirty)
+	    return true;
+
+	int pos = (vpn-map.firstVPN)*pageSize;
+	int amount = Math.min(pageSize, map.length-pos);
+
+	byte[] data = new byte[amount];
+	System.arraycopy(Machine.processor().getMemory(), ppn*pageSize,
+			 data, 0, amount);
+
+	entry.dirty = false;
+	clearTLBBits(vpn, false, true);
+
+	Lib.debug(dbgVM, "\twriting back mapped page " + vpn + " to replace it");
+
+	if (map.file.write(pos, data, 0, amount) == amount)
+	    return true;
+
+	// the file may have been unmapped and closed meanwhile
+	if (getResidentPage(vpn, ppn) == entry && findMapping(vpn) == map)
+	    entry.dirty = true;
+	return false;
+    }
+
+    /**
+     * Give up a resident page, if it can be brought back without losing its
+     * contents: it must be clean, and so match the executable, the swap
+     * space or a mapped file, or never have been written at all. If another
+     * process shares the physical page, it keeps it.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page was given up.
+     */
+    boolean evict(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (entry == null || !entry.valid || entry.dirty)
+	    return false;
+
+	Lib.debug(dbgVM, "\tevicting page " + vpn + " from frame " + entry.ppn);
+
+	// a page read ahead for nothing: read fewer ahead from now on
+	if (prefetched.get(vpn)) {
+	    prefetched.clear(vpn);
+	    prefetchWindow /= 2;
+	}
+
+	pageTable[vpn] = null;
+	if (copyOnWrite != null)
+	    copyOnWrite[vpn] = false;
+	invalidateTLB(vpn);
+
+	VMKernel.releasePage(this, entry.ppn);
+	UserKernel.pagesFree(new TranslationEntry[] { entry });
+	return true;
+    }
+
+    /**
+     * Test whether a resident page may be merged with an identical page: it
+     * must be part of the program image, not part of a large page, and
+     * read-only rather than copy-on-write, so that its contents never change.
+     *
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page holding it.
+     * @return	<tt>true</tt> if the page may be merged.
+     */
+    boolean isMergeable(int vpn, int ppn) {
+	TranslationEntry entry = getResidentPage(vpn, ppn);
+
+	return entry != null && entry.readOnly && vpn < imagePages &&
+	    entry.numPages == 1 && (copyOnWrite == null || !copyOnWrite[vpn]);
+    }
+
+    /**
+     * Map a read-only page to another physical page with the same contents,
+     * and give up the physical page it was in.
+     *
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page to share.
+     */
+    void mergePage(int vpn, int ppn) {
+	TranslationEntry entry = pageTable[vpn];
+
+	Lib.debug(dbgVM, "\tmerging page " + vpn + " from frame " + entry.ppn +
+		  " into frame " + ppn);
+
+	TranslationEntry merged = new TranslationEntry(entry);
+	merged.ppn = ppn;
+	UserKernel.sharePage(ppn);
+
+	invalidateTLB(vpn);
+	VMKernel.releasePage(this, entry.ppn);
+	UserKernel.pagesFree(new TranslationEntry[] { entry });
+	pageTable[vpn] = merged;
+    }
+
+    /**
+     * Note which resident pages were used since the last sample, and clear
+     * their used bits. Called by <tt>VMKernel</tt> once an epoch, after the
+     * used bits in the TLB have been copied to the page table.
+     *
+     * @param	epoch	the number of the epoch just ended.
+     * @param	window	the number of epochs the working set covers.
+     * @return	the number of pages used in the last <i>window</i> epochs.
+     */
+    int sampleWorkingSet(int epoch, int window) {
+	if (lastUsedEpoch.length != pageTable.length)
+	    lastUsedEpoch = Arrays.copyOf(lastUsedEpoch, pageTable.length);
+
+	int size = 0;
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry != null && entry.valid && entry.used) {
+		lastUsedEpoch[vpn] = epoch;
+		entry.used = false;
+	    }
+
+	    // epochs are numbered from 1, so 0 means never used
+	    if (lastUsedEpoch[vpn] != 0 && lastUsedEpoch[vpn] > epoch-window)
+		size++;
+	}
+
+	workingSetSize = size;
+	workingSetTotal += size;
+	numSamples++;
+	maxWorkingSet = Math.max(maxWorkingSet, size);
+	return size;
+    }
+
+    /**
+     * Return the size of this process's working set at the last sample.
+     *
+     * @return	the number of pages.
+     */
+    int getWorkingSetSize() {
+	return workingSetSize;
+    }
+
+    /**
+     * Test whether this process is suspended.
+     *
+     * @return	<tt>true</tt> if its threads may not run user code.
+     */
+    boolean isSuspended() {
+	return suspended;
+    }
+
+    /**
+     * Suspend this process: each of its threads waits the next time it
+     * enters the kernel, until <tt>resume()</tt> is called. Its pages are
+     * then replaced as the clock finds them unused.
+     */
+    void suspend() {
+	Lib.debug(dbgVM, "suspending " + executableName + " (pid " + pid +
+		  "), working set " + workingSetSize + " pages");
+
+	suspended = true;
+	numSuspensions++;
+    }
+
+    /**
+     * Let the threads of a suspended process run again.
+     */
+    void resume() {
+	if (!suspended)
+	    return;
+
+	Lib.debug(dbgVM, "resuming " + executableName + " (pid " + pid + ")");
+
+	suspendLock.acquire();
+	suspended = false;
+	resumed.wakeAll();
+	suspendLock.release();
+    }
+
+    /**
+     * Wait while this process is suspended. A thread of a process that is
+     * exiting goes on, so that it can finish.
+     */
+    private void waitWhileSuspended() {
+	if (!suspended)
+	    return;
+
+	suspendLock.acquire();
+	while (suspended && !exiting)
+	    resumed.sleep();
+	suspendLock.release();
+    }
+
+    /**
+     * Test whether a virtual page is part of a large page.
+     */
+    private boolean isLargePage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	return entry != null && entry.valid && entry.numPages > 1;
+    }
+
+    /**
+     * Fault in the aligned run of <tt>VMKernel.largePageSize</tt> pages
+     * around a virtual page as a large page, if the run is all in one
+     * section or all heap, none of it is resident or swapped, and an aligned
+     * run of physical pages is free while leaving half of memory free for
+     * ordinary pages, which large pages must not crowd out.
+     *
+     * @param	vpn	the virtual page that faulted.
+     * @return	<tt>true</tt> if a large page was mapped.
+     */
+    private boolean mapLargePage(int vpn) {
+	int size = VMKernel.largePageSize;
+	int base = vpn & ~(size-1);
+	if (size <= 1 || base+size > imagePages)
+	    return false;
+
+	for (int v=base; v<base+size; v++) {
+	    if ((pageTable[v] != null && pageTable[v].valid) ||
+		swapSlots[v] != -1)
+		return false;
+	}
+
+	CoffSection section = null;
+	if (base+size <= heapStartPage) {
+	    for (int s=0; s<coff.getNumSections() && section==null; s++) {
+		CoffSection candidate = coff.getSection(s);
+		int firstVPN = candidate.getFirstVPN();
+		if (base >= firstVPN &&
+		    base+size <= firstVPN+candidate.getLength())
+		    section = candidate;
+	    }
+	    if (section == null)
+		return false;
+	}
+	else if (base < heapStartPage ||
+		 base+size > Lib.divRoundUp(heapBreak, pageSize)) {
+	    return false;
+	}
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	if (UserKernel.numFreePages()-size < numPhysPages/2)
+	    return false;
+
+	TranslationEntry[] entries;
+	try {
+	    entries = UserKernel.getAlignedPages(size);
+	}
+	catch (NotEnoughPagesException e) {
+	    return false;
+	}
+
+	int[] ppns = new int[size];
+	for (int i=0; i<size; i++)
+	    ppns[i] = entries[i].ppn;
+
+	if (section != null) {
+	    Lib.debug(dbgVM, "\tpaging in large page at " + base + " of " +
+		      section.getName());
+	    section.loadPages(base-section.getFirstVPN(), ppns);
+	}
+	else {
+	    Lib.debug(dbgVM, "\tzero-filling large heap page at " + base);
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppns[0]*pageSize, (ppns[0]+size)*pageSize,
+			(byte) 0);
+	}
+
+	for (int i=0; i<size; i++) {
+	    entries[i].vpn = base+i;
+	    entries[i].readOnly = section != null && section.isReadOnly();
+	    entries[i].numPages = size;
+	    pageTable[base+i] = entries[i];
+	    VMKernel.invertedPageTable.insert(entries[i].ppn, this, base+i);
+	}
+
+	VMKernel.numLargePages++;
+	return true;
+    }
+
+    /**
+     * Turn a large page back into ordinary pages, which can be replaced one
+     * at a time. The TLB entry for the large page is removed, after its used
+     * and dirty bits are copied to the pages.
+     *
+     * @param	base	the first virtual page of the large page.
+     */
+    private void splitLargePage(int base) {
+	int size = pageTable[base].numPages;
+
+	Lib.debug(dbgVM, "\tsplitting large page at " + base);
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (isOwnTLBEntry(tlbEntry) && coversPage(tlbEntry, base)) {
+		syncTLBEntry(tlbEntry);
+		processor.writeTLBEntry(i, new TranslationEntry());
+	    }
+	}
+
+	for (int vpn=base; vpn<base+size; vpn++)
+	    pageTable[vpn].numPages = 1;
+
+	VMKernel.numLargePagesSplit++;
+    }
+
+    /**
+     * Split every large page of this process.
+     */
+    private void splitLargePages() {
+	if (pageTable != null) {
+	    for (int vpn=0; vpn<pageTable.length; vpn++) {
+		if (isLargePage(vpn))
+		    splitLargePage(vpn);
+	    }
+	}
+    }
+
+    /**
+     * Give a large page its second chance when the clock reaches its first
+     * page: if any of its pages was used since the clock last passed, their
+     * used bits are all cleared; otherwise it is split, so that its pages can
+     * be replaced one at a time. The clock passes over its other pages.
+     *
+     * @param	vpn	a virtual page of the large page.
+     * @return	<tt>true</tt> if the large page was split, and the page is
+     *		now an ordinary page.
+     */
+    boolean ageLargePage(int vpn) {
+	int size = pageTable[vpn].numPages;
+	if ((vpn & (size-1)) != 0)
+	    return false;
+
+	// the TLB entry's used bit covers all of the pages
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (isOwnTLBEntry(tlbEntry) && coversPage(tlbEntry, vpn))
+		syncTLBEntry(tlbEntry);
+	}
+
+	boolean used = false;
+	for (int v=vpn; v<vpn+size; v++)
+	    used |= pageTable[v].used;
+
+	if (!used) {
+	    splitLargePage(vpn);
+	    return true;
+	}
+
+	for (int v=vpn; v<vpn+size; v++)
+	    pageTable[v].used = false;
+	clearTLBBits(vpn, true, false);
+	return false;
+    }
+
+    /**
+     * Test whether a TLB entry translates a virtual page.
+     */
+    private static boolean coversPage(TranslationEntry tlbEntry, int vpn) {
+	return (vpn & ~(tlbEntry.numPages-1)) == tlbEntry.vpn;
+    }
+
+    /**
+     * Clear the used or dirty bits of this process's TLB entry for a virtual
+     * page.
+     */
+    private void clearTLBBits(int vpn, boolean used, boolean dirty) {
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (isOwnTLBEntry(tlbEntry) && coversPage(tlbEntry, vpn)) {
+		if (used)
+		    tlbEntry.used = false;
+		if (dirty)
+		    tlbEntry.dirty = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
+    /**
+     * Invalidate this process's TLB entry for a virtual page. The entry may
+     * be in the TLB even while another process is running.
+     */
+    private void invalidateTLB(int vpn) {
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (isOwnTLBEntry(tlbEntry) && coversPage(tlbEntry, vpn))
+		processor.writeTLBEntry(i, new TranslationEntry());
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits the processor set in this process's TLB
+     * entries back into the page table, so the kernel sees which pages were
+     * touched.
+     */
+    protected void syncTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (isOwnTLBEntry(tlbEntry))
+		syncTLBEntry(tlbEntry);
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits of one of this process's TLB entries back
+     * into the page table. The bits of a large page's entry are copied to
+     * each of its pages.
+     *
+     * @param	tlbEntry	the TLB entry.
+     */
+    void syncTLBEntry(TranslationEntry tlbEntry) {
+	if (pageTable == null || !tlbEntry.valid || tlbEntry.vpn < 0 ||
+	    tlbEntry.vpn+tlbEntry.numPages > pageTable.length)
+	    return;
+
+	for (int i=0; i<tlbEntry.numPages; i++) {
+	    TranslationEntry entry = pageTable[tlbEntry.vpn+i];
+	    if (entry != null && entry.valid && entry.ppn == tlbEntry.ppn+i) {
+		entry.used |= tlbEntry.used;
+		entry.dirty |= tlbEntry.dirty;
+	    }
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits of any process's TLB entry back into that
+     * process's page table.
+     */
+    static void syncAnyTLBEntry(TranslationEntry tlbEntry) {
+	VMProcess owner = VMKernel.asids.getOwner(tlbEntry.asid);
+	if (owner != null && owner.isOwnTLBEntry(tlbEntry))
+	    owner.syncTLBEntry(tlbEntry);
+    }
+
+    /**
+     * Invalidate every one of this process's entries in the TLB.
+     */
+    protected void flushTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    if (isOwnTLBEntry(processor.readTLBEntry(i)))
+		processor.writeTLBEntry(i, new TranslationEntry());
+	}
+    }
+
+    /**
+     * Invalidate this process's TLB entries that no longer agree with the
+     * page table, such as pages that were copied, unmapped or made writable
+     * while the kernel was handling an exception.
+     */
+    protected void refreshTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (!isOwnTLBEntry(tlbEntry))
+		continue;
+
+	    TranslationEntry entry = null;
+	    if (tlbEntry.vpn >= 0 && tlbEntry.vpn < pageTable.length)
+		entry = pageTable[tlbEntry.vpn];
+
+	    if (entry == null || !entry.valid || entry.ppn != tlbEntry.ppn ||
+		entry.readOnly != tlbEntry.readOnly ||
+		entry.numPages != tlbEntry.numPages)
+		processor.writeTLBEntry(i, new TranslationEntry());
+	}
+    }
+
+    /**
+     * Handle a TLB miss by loading the page's translation into the TLB.
+     * Most misses are for resident pages, which are found in the inverted
+     * page table without taking any lock; otherwise the page is faulted in
+     * first.
+     *
+     * @param	vaddr	the virtual address that missed.
+     * @return	<tt>true</tt> if the access can be retried.
+     */
+    protected boolean handleTLBMiss(int vaddr) {
+	// an exiting process runs with no ID, so no entry it loaded could ever
+	// match; the thread ends instead
+	if (exiting)
+	    return false;
+
+	Processor processor = Machine.processor();
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	TranslationEntry entry = null;
+
+	int ppn = VMKernel.invertedPageTable.lookup(this, vpn);
+	if (ppn != -1) {
+	    entry = getResidentPage(vpn, ppn);
+	    if (entry != null)
+		notePrefetchUse(vpn);
+	}
+
+	if (entry == null) {
+	    memoryAccessLock.acquire();
+	    entry = lookupPage(vpn, false);
+	    memoryAccessLock.release();
+
+	    if (entry == null)
+		return false;
+
+	    // releasing the lock may have let another process run and replace
+	    // the page; the access then misses again and faults it back in
+	    if (pageTable[vpn] != entry || !entry.valid)
+		return true;
+	}
+
+	int victim = chooseTLBVictim();
+	syncAnyTLBEntry(processor.readTLBEntry(victim));
+
+	// one entry translates the whole of a large page
+	TranslationEntry tlbEntry = new TranslationEntry(entry);
+	tlbEntry.vpn -= vpn & (entry.numPages-1);
+	tlbEntry.ppn -= vpn & (entry.numPages-1);
+	tlbEntry.asid = asid;
+	processor.writeTLBEntry(victim, tlbEntry);
+	return true;
+    }
+
+    /**
+     * Choose a TLB entry to replace, of any process: an invalid entry if
+     * there is one, and otherwise either a random entry or, with
+     * not-recently-used replacement, one in the lowest class of (used,
+     * dirty), replacing clean entries before dirty ones. When every entry has
+     * been used, the used bits are copied to the page tables and cleared, to
+     * start a new period.
+     *
+     * @return	the TLB entry to replace.
+     */
+    private int chooseTLBVictim() {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	for (int i=0; i<tlbSize; i++) {
+	    if (!processor.readTLBEntry(i).valid)
+		return i;
+	}
+
+	if (!nruReplacement)
+	    return Lib.random(tlbSize);
+
+	// start at a random entry, so ties do not always go the same way
+	int start = Lib.random(tlbSize);
+	int victim = start, victimClass = 4;
+	for (int k=0; k<tlbSize; k++) {
+	    int i = (start+k) % tlbSize;
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+
+	    int nruClass = (tlbEntry.used ? 2 : 0) + (tlbEntry.dirty ? 1 : 0);
+	    if (nruClass < victimClass) {
+		victim = i;
+		victimClass = nruClass;
+	    }
+	}
+
+	if (victimClass >= 2) {
+	    for (int i=0; i<tlbSize; i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		syncAnyTLBEntry(tlbEntry);
+		tlbEntry.used = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+
+	return victim;
+    }
+
+    /**
+     * Look up a page for the kernel, noting whether it was read ahead.
+     */
+    protected TranslationEntry lookupPage(int vpn, boolean writing) {
+	TranslationEntry entry = super.lookupPage(vpn, writing);
+	if (entry != null)
+	    notePrefetchUse(vpn);
+
+	return entry;
+    }
+
+    /**
+     * Count the first use of a page that was read ahead.
+     */
+    private void notePrefetchUse(int vpn) {
+	if (prefetched.get(vpn)) {
+	    prefetched.clear(vpn);
+	    VMKernel.numPrefetchHits++;
+	}
+    }
+
+    /**
+     * Handle a fault on a page that is not mapped. Pages of the program are
+     * read from the executable, pages of a mapped file from the file, and
+     * argument, heap and stack pages are zero-filled.
+     *
+     * @param	vpn	the virtual page that was accessed.
+     * @return	<tt>true</tt> if the page is now mapped.
+     */
+    protected boolean handlePageFault(int vpn) {
+	if (exiting)
+	    return false;
+
+	if (pageTable[vpn] != null && pageTable[vpn].valid)
+	    return true;
+
+	boolean mapped;
+	Mapping map = findMapping(vpn);
+	if (map != null)
+	    mapped = pageInMapping(vpn, map);
+	else if (vpn < swapSlots.length && swapSlots[vpn] != -1)
+	    mapped = pageInSwap(vpn);
+	else if (mapLargePage(vpn))
+	    mapped = true;
+	else if (vpn < heapStartPage)
+	    mapped = pageInSection(vpn);
+	else if (vpn >= stackTopPage && vpn < imagePages)
+	    mapped = mapZeroPage(vpn);
+	else
+	    mapped = super.handlePageFault(vpn);
+
+	// the zero page is the kernel's, and is never replaced
+	if (mapped && pageTable[vpn].ppn != VMKernel.zeroPage)
+	    VMKernel.invertedPageTable.insert(pageTable[vpn].ppn, this, vpn);
+
+	return mapped;
+    }
+
+    /**
+     * Map a virtual page that starts out zero-filled to the kernel's shared
+     * zero page, read-only and copy-on-write, so that it is only given a
+     * physical page of its own when it is first written.
+     */
+    protected boolean mapZeroPage(int vpn) {
+	if (VMKernel.zeroPage == -1)
+	    return super.mapZeroPage(vpn);
+
+	UserKernel.sharePage(VMKernel.zeroPage);
+	pageTable[vpn] =
+	    new TranslationEntry(vpn, VMKernel.zeroPage, true, true, false,
+				 false);
+
+	if (copyOnWrite == null)
+	    copyOnWrite = new boolean[pageTable.length];
+	copyOnWrite[vpn] = true;
+
+	VMKernel.numZeroMappings++;
+	return true;
+    }
+
+    /**
+     * Give this process a writable copy of a copy-on-write page, and record
+     * the copy in the inverted page table.
+     */
+    protected boolean handleCopyOnWrite(int vpn) {
+	int sharedPPN = pageTable[vpn].ppn;
+
+	if (!super.handleCopyOnWrite(vpn))
+	    return false;
+
+	// a page replaced while its copy was allocated was released then
+	if (pageTable[vpn].ppn != sharedPPN &&
+	    VMKernel.invertedPageTable.lookup(this, vpn) == sharedPPN)
+	    VMKernel.releasePage(this, sharedPPN);
+	VMKernel.invertedPageTable.insert(pageTable[vpn].ppn, this, vpn);
+	return true;
+    }
+
+    /**
+     * Read a page back from the swap space, with the pages after it that
+     * were written to the slots after its slot, if faults are sequential.
+     * The pages are clean, since they match their copies there.
+     */
+    private boolean pageInSwap(int vpn) {
+	int slot = swapSlots[vpn];
+	boolean compressed = VMKernel.swapSpace.isCompressed(slot);
+	long startTime = Machine.timer().getTime();
+
+	int window = prefetchWindow(vpn);
+	int count = 1;
+	while (count <= window && canPrefetch(vpn+count) &&
+	       swapSlots[vpn+count] == slot+count)
+	    count++;
+
+	TranslationEntry[] entries = getRun(vpn, count);
+	if (entries == null)
+	    return false;
+
+	Lib.debug(dbgVM, "\tswapping in " + entries.length + " pages at " + vpn +
+		  " from slot " + slot);
+
+	byte[] data = new byte[entries.length*pageSize];
+	if (!VMKernel.swapSpace.read(slot, data)) {
+	    UserKernel.pagesFree(entries);
+	    return false;
+	}
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<entries.length; i++) {
+	    System.arraycopy(data, i*pageSize, memory, entries[i].ppn*pageSize,
+			     pageSize);
+
+	    // only pages that were written are swapped, so they are writable
+	    if (copyOnWrite != null)
+		copyOnWrite[vpn+i] = false;
+	    mapRun(vpn, i, entries[i], false);
+	}
+
+	VMKernel.swapSpace.countFault(compressed,
+				      Machine.timer().getTime()-startTime);
+	return true;
+    }
+
+    /**
+     * Read a page of the program from the executable, with the pages after it
+     * in the same section, if faults are sequential.
+     */
+    private boolean pageInSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    int firstVPN = section.getFirstVPN();
+	    if (vpn < firstVPN || vpn >= firstVPN+section.getLength())
+		continue;
+
+	    // uninitialized data costs no read
+	    if (section.isZeroFilled(vpn-firstVPN) && !section.isReadOnly())
+		return mapZeroPage(vpn);
+
+	    int window = prefetchWindow(vpn);
+	    int count = 1;
+	    while (count <= window &&
+		   vpn+count < firstVPN+section.getLength() &&
+		   canPrefetch(vpn+count) && swapSlots[vpn+count] == -1 &&
+		   !section.isZeroFilled(vpn+count-firstVPN))
+		count++;
+
+	    TranslationEntry[] entries = getRun(vpn, count);
+	    if (entries == null)
+		return false;
+
+	    Lib.debug(dbgVM, "\tpaging in " + entries.length + " pages at " +
+		      vpn + " of " + section.getName());
+
+	    int[] ppns = new int[entries.length];
+	    for (int i=0; i<entries.length; i++)
+		ppns[i] = entries[i].ppn;
+	    section.loadPages(vpn-firstVPN, ppns);
+
+	    for (int i=0; i<entries.length; i++)
+		mapRun(vpn, i, entries[i], section.isReadOnly());
+
+	    return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Note a fault on a page that is read from the executable or the swap
+     * space, and decide how many of the pages after it to read with it.
+     *
+     * @param	vpn	the virtual page that faulted.
+     * @return	the number of pages to read ahead.
+     */
+    private int prefetchWindow(int vpn) {
+	boolean sequential = vpn == lastFaultVPN+1 || vpn == prefetchEnd;
+	lastFaultVPN = vpn;
+
+	if (!sequential)
+	    return 0;
+
+	prefetchWindow = Math.min(Math.max(1, prefetchWindow*2), maxPrefetch);
+	return prefetchWindow;
+    }
+
+    /**
+     * Test whether a page may be read ahead: it must be part of the program
+     * image and not already resident.
+     */
+    private boolean canPrefetch(int vpn) {
+	return vpn < imagePages &&
+	    (pageTable[vpn] == null || !pageTable[vpn].valid);
+    }
+
+    /**
+     * Allocate physical pages for a run of virtual pages. The first page, the
+     * one that faulted, may replace another page; the pages read ahead only
+     * use pages that are free, so the run may be shorter than asked.
+     *
+     * @param	vpn	the first virtual page of the run.
+     * @param	count	the number of pages in the run.
+     * @return	the physical pages, or <tt>null</tt> if there is no memory
+     *		for even the first page.
+     */
+    private TranslationEntry[] getRun(int vpn, int count) {
+	TranslationEntry first;
+	try {
+	    first = getPrivatePages(1)[0];
+	}
+	catch (NotEnoughPagesException e) {
+	    Lib.debug(dbgVM, "\tno memory for page " + vpn);
+	    return null;
+	}
+
+	TranslationEntry[] ahead = new TranslationEntry[0];
+	int numAhead = Math.min(count-1, UserKernel.numFreePages());
+	if (numAhead > 0) {
+	    try {
+		ahead = UserKernel.getPages(numAhead);
+		VMKernel.checkFreePages();
+	    }
+	    catch (NotEnoughPagesException e) {
+	    }
+	}
+
+	TranslationEntry[] entries = new TranslationEntry[1+ahead.length];
+	entries[0] = first;
+	System.arraycopy(ahead, 0, entries, 1, ahead.length);
+	return entries;
+    }
+
+    /**
+     * Map a page of a run read by <tt>pageInSwap()</tt> or
+     * <tt>pageInSection()</tt>. The first page is recorded in the inverted
+     * page table by <tt>handlePageFault()</tt>; the pages read ahead are
+     * recorded here.
+     */
+    private void mapRun(int vpn, int i, TranslationEntry entry,
+			boolean readOnly) {
+	entry.vpn = vpn+i;
+	entry.readOnly = readOnly;
+	pageTable[vpn+i] = entry;
+
+	if (i > 0) {
+	    prefetched.set(vpn+i);
+	    VMKernel.numPrefetched++;
+	    VMKernel.invertedPageTable.insert(entry.ppn, this, vpn+i);
+	}
+
+	prefetchEnd = vpn+i+1;
+    }
+
+    /**
+     * Read a page of a mapped file from the file.
+     */
+    private boolean pageInMapping(int vpn, Mapping map) {
+	TranslationEntry entry;
+	try {
+	    entry = getPrivatePages(1)[0];
+	}
+	catch (NotEnoughPagesException e) {
+	    Lib.debug(dbgVM, "\tno memory for mapped page " + vpn);
+	    return false;
+	}
+
+	byte[] memory = Machine.processor().getMemory();
+	int paddr = entry.ppn*pageSize;
+	int pos = (vpn-map.firstVPN)*pageSize;
+	int amount = Math.min(pageSize, map.length-pos);
+
+	Lib.debug(dbgVM, "\tpaging in mapped page " + vpn + " of " + map.file.getName());
+
+	int bytesRead = map.file.read(pos, memory, paddr, amount);
+	Arrays.fill(memory, paddr + Math.max(bytesRead, 0), paddr + pageSize,
+		    (byte) 0);
+
+	entry.vpn = vpn;
+	pageTable[vpn] = entry;
+	return true;
+    }
+
+    private Mapping findMapping(int vpn) {
+	for (Mapping map : mappings.values()) {
+	    if (vpn >= map.firstVPN && vpn < map.firstVPN+map.numPages)
+		return map;
+	}
+
+	return null;
+    }
+
+    /**
+     * Handle the mmap() system call. The whole file is mapped starting at the
+     * page-aligned <i>vaddr</i>, which must lie above the program's stack and
+     * arguments and clear of any other mapped file. No page is read until the
+     * program touches it.
+     *
+     * @return	the length of the file, or -1 if an error occurred.
+     */
+    private int handleMmap(int fd, int vaddr) {
+	OpenFile file = fileTable.get(fd);
+	if (file == null || mappings.containsKey(fd))
+	    return -1;
+
+	int length = file.length();
+	if (length < 0 || vaddr < 0 || vaddr % pageSize != 0)
+	    return -1;
+
+	int firstVPN = vaddr / pageSize;
+	int numMapPages = Lib.divRoundUp(length, pageSize);
+
+	if (mapLimitPage == 0)
+	    mapLimitPage = numPages + maxMapPages;
+	if (firstVPN < imagePages ||
+	    (long) firstVPN + numMapPages > mapLimitPage)
+	    return -1;
+
+	memoryAccessLock.acquire();
+
+	for (int vpn=firstVPN; vpn<firstVPN+numMapPages && vpn<numPages; vpn++) {
+	    if (pageTable[vpn] != null || findMapping(vpn) != null) {
+		memoryAccessLock.release();
+		return -1;
+	    }
+	}
+
+	if (firstVPN+numMapPages > numPages) {
+	    numPages = firstVPN+numMapPages;
+	    pageTable = Arrays.copyOf(pageTable, numPages);
+	    if (copyOnWrite != null)
+		copyOnWrite = Arrays.copyOf(copyOnWrite, numPages);
+	}
+
+	mappings.put(fd, new Mapping(file, firstVPN, numMapPages, length));
+
+	memoryAccessLock.release();
+
+	Lib.debug(dbgVM, "\tmapped " + file.getName() + " at page " + firstVPN +
+		  " (" + numMapPages + " pages)");
+
+	return length;
+    }
+
+    /**
+     * Write the dirty pages of a mapped file back to the file and remove the
+     * mapping. Pages that were never touched were never read, and clean
+     * pages still match the file, so neither is written.
+     */
+    private void unmap(int fd) {
+	Mapping map = mappings.remove(fd);
+	if (map == null)
+	    return;
+
+	syncTLB();
+
+	memoryAccessLock.acquire();
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int vpn=map.firstVPN; vpn<map.firstVPN+map.numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry == null)
+		continue;
+
+	    if (entry.valid && entry.dirty) {
+		int pos = (vpn-map.firstVPN)*pageSize;
+		Lib.debug(dbgVM, "\twriting back mapped page " + vpn);
+		map.file.write(pos, memory, entry.ppn*pageSize,
+			       Math.min(pageSize, map.length-pos));
+	    }
+
+	    if (entry.valid)
+		VMKernel.releasePage(this, entry.ppn);
+	    UserKernel.pagesFree(new TranslationEntry[] { entry });
+	    pageTable[vpn] = null;
+	    if (copyOnWrite != null)
+		copyOnWrite[vpn] = false;
+	}
+
+	memoryAccessLock.release();
+    }
+
+    /**
+     * Read every page of every mapped file into memory, so that a forked
+     * child, which does not share the mappings, gets a complete copy of them.
+     */
+    private void faultInMappings() {
+	memoryAccessLock.acquire();
+
+	for (Mapping map : mappings.values()) {
+	    for (int vpn=map.firstVPN; vpn<map.firstVPN+map.numPages; vpn++)
+		lookupPage(vpn, false);
+	}
+
+	memoryAccessLock.release();
+    }
+
+    /**
+     * Close a file descriptor, first writing back and removing any mapping
+     * of the file. Also called for every open file when the process exits.
+     */
+    protected int handleClose(int fd) {
+	unmap(fd);
+
+	return super.handleClose(fd);
+    }
+
+    /**
+     * Keep user programs away from the swap file, which holds the swapped
+     * pages of every process.
+     */
+    protected boolean isReservedFile(String name) {
+	return name.equals(VMKernel.swapSpace.getFileName());
+    }
+
+    private static final int
+	syscallMmap = 10;
+
+    /**
+     * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+     * <i>syscall</i> argument identifies which syscall the user executed:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * </table>
+     *
+     * <p>
+     * <tt>read()</tt> and <tt>write()</tt> fail on a file descriptor whose
+     * file is mapped, until it is closed.
+     *
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+	case syscallRead:
+	case syscallWrite:
+	    if (mappings.containsKey(a0))
+		return -1;
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	case syscallFork:
+	    faultInMappings();
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	default:
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
+    }
 
     /**
      * Handle a user exception. Called by
@@ -60,13 +1429,87 @@ public class VMProcess extends UserProcess {
     public void handleException(int cause) {
 	Processor processor = Machine.processor();
 
+	waitWhileSuspended();
+
+	// the kernel works on the page table, so bring it up to date first
+	syncTLB();
+
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr))) {
+		Lib.debug(dbgProcess, "Access to unmapped page");
+		terminate();
+		Lib.assertNotReached("Unexpected exception");
+	    }
+	    break;
 	default:
 	    super.handleException(cause);
+	    refreshTLB();
 	    break;
 	}
     }
-	
+
+    /**
+     * A file mapped into the address space with <tt>mmap()</tt>.
+     */
+    private static class Mapping {
+	Mapping(OpenFile file, int firstVPN, int numPages, int length) {
+	    this.file = file;
+	    this.firstVPN = firstVPN;
+	    this.numPages = numPages;
+	    this.length = length;
+	}
+
+	OpenFile file;
+	int firstVPN, numPages;
+	/** The length of the file when it was mapped. */
+	int length;
+    }
+
+    /** Mapped files, by file descriptor. */
+    private HashMap<Integer, Mapping> mappings = new HashMap<Integer, Mapping>();
+    /** The largest number of pages files may be mapped at past the program. */
+    private int maxMapPages;
+    /** The first page past the highest page a file may be mapped at. */
+    private int mapLimitPage = 0;
+    /** The ID tagging this process's TLB entries, or 0 if it has none. */
+    private int asid = 0;
+    /** The generation of the address space IDs <tt>asid</tt> belongs to. */
+    private int asidGeneration;
+    /** The most pages to read ahead of a fault. */
+    private int maxPrefetch;
+    /** The number of pages to read ahead of the next sequential fault. */
+    private int prefetchWindow = 0;
+    /** The last page faulted in from the executable or the swap space. */
+    private int lastFaultVPN = -2;
+    /** The page after the last page read ahead. */
+    private int prefetchEnd = -1;
+    /** The pages read ahead that have not been used yet. */
+    private BitSet prefetched = new BitSet();
+    /** Whether TLB misses replace not-recently-used entries, or random ones. */
+    private boolean nruReplacement;
+    /** The number of pages of the program, heap, stacks and arguments. */
+    private int imagePages;
+    /**
+     * The swap slot holding a copy of each page below <tt>imagePages</tt>,
+     * and of each copy of a mapped page given to a forked child, or -1 if
+     * the page has not been swapped since it was last written.
+     */
+    private int[] swapSlots;
+
+    /** The last epoch in which each page was seen to be used, or 0. */
+    private int[] lastUsedEpoch = new int[0];
+    /** The number of pages in the working set at the last sample. */
+    private int workingSetSize = 0;
+    private long workingSetTotal = 0;
+    private int numSamples = 0;
+    private int maxWorkingSet = 0;
+
+    private boolean suspended = false;
+    private int numSuspensions = 0;
+    private Lock suspendLock = new Lock();
+    private Condition resumed = new Condition(suspendLock);
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';